@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import com.ecsteam.nozzle.influxdb.destination.MetricsDestination;
+import com.ecsteam.nozzle.influxdb.foundation.AppDataCache;
+import com.ecsteam.nozzle.influxdb.lineprotocol.LineProtocolEncoder;
+import com.ecsteam.nozzle.influxdb.util.TestCloudFoundryClient;
+import com.ecsteam.nozzle.influxdb.util.TestDopplerClient;
+import org.cloudfoundry.doppler.Envelope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of turning one envelope into a line protocol point. Run with the GC profiler to get
+ * the bytes allocated per op, which is what the <tt>jmh</tt> profile does by default:
+ *
+ * <tt>./mvnw -Pjmh test-compile exec:exec</tt>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FirehoseEventSerializerBenchmark {
+
+	private static final int FIXTURE_SIZE = 1 << 12;
+
+	/**
+	 * The envelopes to serialize. <tt>mixed</tt> is an even mix of the four types, <tt>router</tt> is
+	 * dominated by HttpStartStop like the firehose of a busy foundation.
+	 */
+	@Param({"ContainerMetric", "CounterEvent", "HttpStartStop", "ValueMetric", "mixed", "router"})
+	public String envelopes;
+
+	/**
+	 * Whether the AppDataCache has been loaded, so ContainerMetric and HttpStartStop get app, space and org tags
+	 */
+	@Param({"true", "false"})
+	public boolean enrichment;
+
+	@Param({"none", "ip,job,index", "ip,job,index,deployment,tags"})
+	public String tagFields;
+
+	private FirehoseEventSerializer serializer;
+
+	private Envelope[] fixture;
+
+	private int next;
+
+	@Setup
+	public void setup() {
+		NozzleProperties properties = new NozzleProperties();
+		properties.setFoundation("benchmark");
+		if (!"none".equals(tagFields)) {
+			properties.setTagFields(tagFields);
+		}
+
+		AppDataCache appDataCache = new AppDataCache(enrichment ? new TestCloudFoundryClient() : null);
+		appDataCache.refreshCache();
+
+		MetricsDestination destination = () -> "http://localhost:8086";
+		InfluxDBBatchSender sender = new InfluxDBBatchSender(properties, destination);
+
+		// never started, encode() does not touch the buffer
+		BatchedEventListener batcher = new BatchedEventListener(1, properties.getBufferSize(),
+				sender, new FlushPolicy(properties.getBatchSize(), 0, 0), new NoOpCounterService(), 1);
+
+		serializer = new FirehoseEventSerializer(properties, batcher, appDataCache,
+				new SeriesPrefixCache(properties.getSeriesCacheSize()), new NoOpCounterService());
+
+		fixture = fixture(envelopes).toArray(new Envelope[0]);
+	}
+
+	@Benchmark
+	public int serialize() {
+		Envelope envelope = fixture[next++ & (FIXTURE_SIZE - 1)];
+
+		LineProtocolEncoder encoder = serializer.encode(envelope);
+		return encoder != null ? encoder.length() : 0;
+	}
+
+	private static List<Envelope> fixture(String envelopes) {
+		TestDopplerClient client = new TestDopplerClient();
+		Random random = new Random(42);
+
+		List<Envelope> fixture = new ArrayList<>(FIXTURE_SIZE);
+		while (fixture.size() < FIXTURE_SIZE) {
+			switch (envelopes) {
+				case "ContainerMetric":
+					fixture.add(client.generateContainerMetric());
+					break;
+				case "CounterEvent":
+					fixture.add(client.generateCounterEvent());
+					break;
+				case "HttpStartStop":
+					fixture.add(client.generateHttpStartStop());
+					break;
+				case "ValueMetric":
+					fixture.add(client.generateValueMetric());
+					break;
+				case "router":
+					int roll = random.nextInt(100);
+					if (roll < 70) {
+						fixture.add(client.generateHttpStartStop());
+					} else if (roll < 90) {
+						fixture.add(client.generateValueMetric());
+					} else if (roll < 95) {
+						fixture.add(client.generateCounterEvent());
+					} else {
+						fixture.add(client.generateContainerMetric());
+					}
+					break;
+				case "mixed":
+				default:
+					fixture.addAll(client.envelopes());
+					break;
+			}
+		}
+
+		List<Envelope> sized = new ArrayList<>(fixture.subList(0, FIXTURE_SIZE));
+		Collections.shuffle(sized, random);
+
+		return sized;
+	}
+
+	private static class NoOpCounterService implements CounterService {
+		@Override
+		public void increment(String metricName) {
+		}
+
+		@Override
+		public void decrement(String metricName) {
+		}
+
+		@Override
+		public void reset(String metricName) {
+		}
+	}
+}
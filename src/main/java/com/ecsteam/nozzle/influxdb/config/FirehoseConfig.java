@@ -16,10 +16,25 @@
 
 package com.ecsteam.nozzle.influxdb.config;
 
+import com.ecsteam.nozzle.influxdb.destination.MetricsDestination;
 import com.ecsteam.nozzle.influxdb.foundation.AppDataCache;
+import com.ecsteam.nozzle.influxdb.nozzle.BatchSizeController;
+import com.ecsteam.nozzle.influxdb.nozzle.BatchSpool;
+import com.ecsteam.nozzle.influxdb.nozzle.BatchedEventListener;
+import com.ecsteam.nozzle.influxdb.nozzle.CounterCoalescer;
+import com.ecsteam.nozzle.influxdb.nozzle.EnvelopeDeduplicator;
 import com.ecsteam.nozzle.influxdb.nozzle.FirehoseAuthenticationManager;
 import com.ecsteam.nozzle.influxdb.nozzle.FirehoseReader;
 import com.ecsteam.nozzle.influxdb.nozzle.FirehoseEventSerializer;
+import com.ecsteam.nozzle.influxdb.nozzle.FlushPolicy;
+import com.ecsteam.nozzle.influxdb.nozzle.GaugeDownsampler;
+import com.ecsteam.nozzle.influxdb.nozzle.HttpLatencyHistograms;
+import com.ecsteam.nozzle.influxdb.nozzle.InfluxDBBatchSender;
+import com.ecsteam.nozzle.influxdb.nozzle.LoadShedder;
+import com.ecsteam.nozzle.influxdb.nozzle.SeriesPrefixCache;
+import com.ecsteam.nozzle.influxdb.nozzle.SpoolReplayer;
+import com.ecsteam.nozzle.influxdb.nozzle.WriteRouter;
+import com.ecsteam.nozzle.influxdb.nozzle.WriteTarget;
 import org.cloudfoundry.client.CloudFoundryClient;
 import org.cloudfoundry.doppler.DopplerClient;
 import org.cloudfoundry.reactor.DefaultConnectionContext;
@@ -30,11 +45,13 @@ import org.cloudfoundry.reactor.tokenprovider.ClientCredentialsGrantTokenProvide
 import org.cloudfoundry.reactor.uaa.ReactorUaaClient;
 import org.cloudfoundry.uaa.UaaClient;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.util.StringUtils;
 
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -95,14 +112,147 @@ public class FirehoseConfig {
 
 	@Bean
 	@Autowired
-	FirehoseReader firehoseReader(DopplerClient dopplerClient, NozzleProperties properties, FirehoseEventSerializer writer) {
-		return new FirehoseReader(dopplerClient, properties, writer);
+	FirehoseReader firehoseReader(DopplerClient dopplerClient, NozzleProperties properties, FirehoseEventSerializer writer,
+								  CounterService counterService, EnvelopeDeduplicator deduplicator) {
+		FirehoseReader reader = new FirehoseReader(dopplerClient, properties, writer);
+		reader.setCounterService(counterService);
+		reader.setDeduplicator(deduplicator);
+
+		return reader;
+	}
+
+	@Bean
+	@Autowired
+	EnvelopeDeduplicator envelopeDeduplicator(NozzleProperties properties) {
+		return new EnvelopeDeduplicator(properties.getDedupWindow(), properties.getDedupExpectedEvents(),
+				properties.getDedupFalsePositiveRate());
+	}
+
+	@Bean
+	@Autowired
+	AppDataCache appDataCache(NozzleProperties properties, CloudFoundryClient cfClient) {
+		File snapshotFile = StringUtils.hasText(properties.getAppDataFile()) ? new File(properties.getAppDataFile()) : null;
+
+		return new AppDataCache(cfClient, properties.getAppDataMissTtl(), snapshotFile);
+	}
+
+	@Bean
+	@Autowired
+	SeriesPrefixCache seriesPrefixCache(NozzleProperties properties, AppDataCache appDataCache) {
+		SeriesPrefixCache cache = new SeriesPrefixCache(properties.getSeriesCacheSize());
+		appDataCache.addChangeListener(applicationIds -> {
+			if (applicationIds != null) {
+				cache.invalidate(applicationIds);
+			} else {
+				cache.invalidate();
+			}
+		});
+
+		return cache;
+	}
+
+	@Bean
+	@Autowired
+	WriteRouter writeRouter(NozzleProperties properties, InfluxDBBatchSender sender, MetricsDestination destination,
+							BatchSpool defaultSpool) {
+		WriteRouter router = new WriteRouter(properties.getRoutes(), sender.getDefaultTarget(),
+				destination.getInfluxDbHosts());
+
+		// the spools share spoolMaxBytes, the default one too even when sharding leaves it to replay only
+		int spools = router.getTargets().size() + (router.getTargets().contains(sender.getDefaultTarget()) ? 0 : 1);
+		long share = properties.getSpoolMaxBytes() > 0 ? Math.max(1, properties.getSpoolMaxBytes() / spools) : 0;
+		if (spools > 1 && defaultSpool.isEnabled()) {
+			defaultSpool.setMaxBytes(share);
+		}
+
+		// each routed or sharded target spools to a directory of its own
+		for (WriteTarget target : router.getTargets()) {
+			if (target == sender.getDefaultTarget()) {
+				continue;
+			}
+
+			BatchSpool spool = new BatchSpool(new File(properties.getSpoolDirectory(), target.getName()), share);
+			target.setSpool(spool);
+
+			router.addReplayer(new SpoolReplayer(spool, sender, target, properties.getSpoolReplayRate(),
+					properties.getMinBackoff(), properties.getMaxBackoff()));
+		}
+
+		return router;
+	}
+
+	@Bean
+	@Autowired
+	FlushPolicy flushPolicy(NozzleProperties properties) {
+		if (properties.getBatchSizeAdjustInterval() <= 0) {
+			return new FlushPolicy(properties.getBatchSize(), properties.getMaxBatchBytes(),
+					properties.getBatchLinger());
+		}
+
+		// adjusted from batchSize, up to maxBatchSize
+		FlushPolicy policy = new FlushPolicy(Math.max(properties.getBatchSize(), properties.getMaxBatchSize()),
+				properties.getMaxBatchBytes(), properties.getBatchLinger());
+		policy.setTargetPoints(properties.getBatchSize());
+
+		return policy;
+	}
+
+	@Bean
+	@Autowired
+	BatchSizeController batchSizeController(NozzleProperties properties, FlushPolicy policy,
+											InfluxDBBatchSender sender, BatchedEventListener batcher) {
+		return new BatchSizeController(policy, properties.getMinBatchSize(), properties.getBatchLatencyTarget(),
+				properties.getBatchSizeAdjustInterval(), sender.getWriteStats(), batcher);
+	}
+
+	@Bean
+	@Autowired
+	LoadShedder loadShedder(NozzleProperties properties, WriteRouter router) {
+		return new LoadShedder(properties.getShedOrder(), router.getTargets());
+	}
+
+	@Bean
+	@Autowired
+	BatchedEventListener batchedEventListener(NozzleProperties properties, InfluxDBBatchSender sender,
+											  WriteRouter router, FlushPolicy policy, CounterService counterService) {
+		int shards = Math.max(1, properties.getShards());
+
+		return new BatchedEventListener(router.getTargets(), shards, Math.max(1, properties.getBufferSize() / shards),
+				sender, policy, counterService, properties.getMaxPendingBatches());
+	}
+
+	@Bean
+	@Autowired
+	GaugeDownsampler gaugeDownsampler(NozzleProperties properties, BatchedEventListener batcher) {
+		return new GaugeDownsampler(properties.getDownsampleWindow(), properties.getAggregationMaxSeries(),
+				properties.getDownsampledEvents(), batcher, properties.isIntegerFields());
+	}
+
+	@Bean
+	@Autowired
+	HttpLatencyHistograms httpLatencyHistograms(NozzleProperties properties, BatchedEventListener batcher) {
+		return new HttpLatencyHistograms(properties.getHttpHistogramWindow(), properties.getAggregationMaxSeries(),
+				batcher, properties.isIntegerFields());
+	}
+
+	@Bean
+	@Autowired
+	CounterCoalescer counterCoalescer(NozzleProperties properties, BatchedEventListener batcher) {
+		return new CounterCoalescer(properties.getCounterCoalesceWindow(), properties.getAggregationMaxSeries(),
+				batcher, properties.isIntegerFields());
+	}
+
+	@Bean
+	@Autowired
+	BatchSpool batchSpool(NozzleProperties properties) {
+		return new BatchSpool(new File(properties.getSpoolDirectory()), properties.getSpoolMaxBytes());
 	}
 
 	@Bean
 	@Autowired
-	AppDataCache appDataCache(CloudFoundryClient cfClient) {
-		return new AppDataCache(cfClient);
+	SpoolReplayer spoolReplayer(NozzleProperties properties, BatchSpool spool, InfluxDBBatchSender sender) {
+		return new SpoolReplayer(spool, sender, properties.getSpoolReplayRate(), properties.getMinBackoff(),
+				properties.getMaxBackoff());
 	}
 
 	private String getApiHost(NozzleProperties properties) {
@@ -17,12 +17,15 @@
 package com.ecsteam.nozzle.influxdb.config;
 
 import com.ecsteam.nozzle.influxdb.nozzle.BackoffPolicy;
+import com.ecsteam.nozzle.influxdb.nozzle.OverflowPolicy;
+import com.ecsteam.nozzle.influxdb.nozzle.RoutingRule;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.Data;
 import org.cloudfoundry.doppler.EventType;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -35,6 +38,8 @@ public class NozzleProperties {
 
 	private static final TypeReference<List<String>> STRING_LIST = new TypeReference<List<String>>() {};
 
+	private static final TypeReference<List<RoutingRule>> RULE_LIST = new TypeReference<List<RoutingRule>>() {};
+
 	/**
 	 * The Cloud Controller host. Should be in the form `api.{{SYSTEM_DOMAIN}}`
 	 */
@@ -66,6 +71,12 @@ public class NozzleProperties {
 	 */
 	private String subscriptionId = "influxdb-nozzle";
 
+	/**
+	 * The number of firehose connections this instance opens. Doppler spreads the events of a
+	 * subscription across all of its connections.
+	 */
+	private int firehoseConnections = 1;
+
 	/**
 	 * If set, will add an extra tag "foundation={value}" to every measurement
 	 */
@@ -76,6 +87,11 @@ public class NozzleProperties {
 	 */
 	private String dbHost = "http://localhost:8086";
 
+	/**
+	 * The InfluxDB host URLs series are spread over by consistent hashing, instead of dbHost
+	 */
+	private final List<String> dbHosts = new ArrayList<>();
+
 	/**
 	 * The DB name (which must exist)
 	 */
@@ -86,6 +102,125 @@ public class NozzleProperties {
 	 */
 	private int batchSize = 100;
 
+	/**
+	 * The max size of a batch in bytes, a batch is sent before it grows larger. Should be below the
+	 * max-body-size of InfluxDB (25MB by default). 0 means no limit.
+	 */
+	private long maxBatchBytes = 5_000_000L;
+
+	/**
+	 * The max time in ms a point waits in a batch that is not full yet. 0 means wait until the batch is full.
+	 */
+	private long batchLinger = 1000L;
+
+	/**
+	 * How often in ms the batch size is adjusted to the write latency and error rate, between
+	 * minBatchSize and maxBatchSize, starting from batchSize. 0 keeps batchSize fixed.
+	 */
+	private long batchSizeAdjustInterval = 0L;
+
+	/**
+	 * The smallest batch size the adjustment goes down to
+	 */
+	private int minBatchSize = 10;
+
+	/**
+	 * The largest batch size the adjustment goes up to
+	 */
+	private int maxBatchSize = 5000;
+
+	/**
+	 * The mean write latency in ms the adjustment keeps the batch size below
+	 */
+	private long batchLatencyTarget = 1000L;
+
+	/**
+	 * The max number of encoded messages waiting to be batched, split evenly between the shards. Serializing
+	 * waits while the buffer is full.
+	 */
+	private int bufferSize = 65536;
+
+	/**
+	 * The number of pipeline shards, each serializing and batching its share of the series on threads of
+	 * its own. Defaults to the number of available processors.
+	 */
+	private int shards = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The max number of firehose envelopes waiting to be serialized
+	 */
+	private int envelopeBufferSize = 8192;
+
+	/**
+	 * What to do with firehose events while the envelope buffer is full (dropOldest, dropNewest, block)
+	 */
+	private OverflowPolicy overflowPolicy = OverflowPolicy.dropOldest;
+
+	/**
+	 * The max number of batches waiting to be written to InfluxDB. Once reached, the nozzle stops
+	 * batching until one is written.
+	 */
+	private int maxPendingBatches = 20;
+
+	/**
+	 * The max number of encoded series prefixes (measurement plus tags) kept in memory. 0 disables the cache.
+	 */
+	private int seriesCacheSize = 50000;
+
+	/**
+	 * Milliseconds before an app that could not be looked up in the Cloud Controller, such as a deleted app,
+	 * is looked up again
+	 */
+	private long appDataMissTtl = 300_000L;
+
+	/**
+	 * Where a copy of the app, space and org names is kept, so they are known right away after a restart.
+	 * Empty to not keep one.
+	 */
+	private String appDataFile = new File(System.getProperty("java.io.tmpdir"), "influxdb-nozzle-appdata").getPath();
+
+	/**
+	 * Write whole number fields (byte counts, status codes, counter totals...) as InfluxDB integers. Off by
+	 * default, as measurements created by earlier versions of the nozzle have them typed as floats and InfluxDB
+	 * rejects a field that changes type within a shard. Turn it on when writing to a fresh database.
+	 */
+	private boolean integerFields = false;
+
+	/**
+	 * The max number of pooled HTTP connections to InfluxDB
+	 */
+	private int maxConnections = 20;
+
+	/**
+	 * The max number of write requests to InfluxDB in flight at once, further batches wait. 0 means no limit.
+	 */
+	private int maxInFlightWrites = 10;
+
+	/**
+	 * How long in ms an idle connection to InfluxDB is kept open for reuse
+	 */
+	private long httpKeepAlive = 60000L;
+
+	/**
+	 * The timeout in ms to open a connection to InfluxDB, or to lease one from the pool
+	 */
+	private int connectTimeout = 5000;
+
+	/**
+	 * The timeout in ms waiting for InfluxDB to respond to a write
+	 */
+	private int socketTimeout = 30000;
+
+	/**
+	 * Gzip the bodies of write requests
+	 */
+	private boolean gzip = false;
+
+	/**
+	 * The gzip compression level, from 1 (fastest) to 9 (smallest)
+	 */
+	private int gzipLevel = 1;
+
 	/**
 	 * The policy to use when backing off retries (exponential, linear, random)
 	 */
@@ -106,6 +241,78 @@ public class NozzleProperties {
 	 */
 	private int maxRetries = 10;
 
+	/**
+	 * Where batches that could not be written to InfluxDB are spooled until it is back
+	 */
+	private String spoolDirectory = new File(System.getProperty("java.io.tmpdir"), "influxdb-nozzle-spool").getPath();
+
+	/**
+	 * The max size of the spool in bytes. Once full, the oldest batches are dropped. 0 disables spooling.
+	 * With routes or several InfluxDB hosts, every target has a spool and they split it evenly.
+	 */
+	private long spoolMaxBytes = 268_435_456L;
+
+	/**
+	 * Spool every batch, not only the ones that failed, while InfluxDB is unreachable
+	 */
+	private boolean spoolWhileUnhealthy = true;
+
+	/**
+	 * The failed writes in a row that open a target's circuit breaker, after which batches are spooled or
+	 * dropped without trying until a probe write succeeds. 0 never opens it.
+	 */
+	private int breakerFailureThreshold = 0;
+
+	/**
+	 * How long in ms an open circuit breaker waits before a probe write
+	 */
+	private long breakerOpenTime = 30000L;
+
+	/**
+	 * The max number of spooled batches replayed per second once InfluxDB is back
+	 */
+	private int spoolReplayRate = 20;
+
+	/**
+	 * How long in millis envelopes are remembered to drop duplicates, such as the ones sent again after a
+	 * reconnect. 0 disables deduplication.
+	 */
+	private long dedupWindow = 0L;
+
+	/**
+	 * The number of envelopes expected per dedup window, sizes the filters
+	 */
+	private long dedupExpectedEvents = 1_000_000L;
+
+	/**
+	 * The rate of unique envelopes wrongly dropped as duplicates, at the expected number of envelopes
+	 */
+	private double dedupFalsePositiveRate = 0.0001;
+
+	/**
+	 * Length in millis of the windows ValueMetrics and ContainerMetrics are downsampled to, one point per
+	 * series per window. 0 writes every event.
+	 */
+	private long downsampleWindow = 0L;
+
+	/**
+	 * Length in millis of the windows HttpStartStop events are folded into latency histograms over, one
+	 * point per app, status class and method per window. 0 writes every request.
+	 */
+	private long httpHistogramWindow = 0L;
+
+	/**
+	 * Length in millis of the windows CounterEvents are coalesced over, one point per counter per window
+	 * with the latest total and the summed delta. 0 writes every event.
+	 */
+	private long counterCoalesceWindow = 0L;
+
+	/**
+	 * The max number of series aggregated at once, by each aggregation. Events of other series are
+	 * written as they are.
+	 */
+	private int aggregationMaxSeries = 100_000;
+
 	/**
 	 * Skip SSL validation when connecting to the firehose
 	 */
@@ -127,6 +334,30 @@ public class NozzleProperties {
 		add(EventType.VALUE_METRIC);
 	}};
 
+	/**
+	 * The event types downsampled when downsampleWindow is set. Valid types are CONTAINER_METRIC and VALUE_METRIC.
+	 */
+	private final List<EventType> downsampledEvents = new ArrayList<EventType>() {{
+		add(EventType.CONTAINER_METRIC);
+		add(EventType.VALUE_METRIC);
+	}};
+
+	/**
+	 * The event types dropped while InfluxDB is degraded, in the order they are shed. The first one is shed
+	 * as soon as a write fails, all of them while the circuit breaker is open. Needs breakerFailureThreshold.
+	 */
+	private final List<EventType> shedOrder = new ArrayList<>();
+
+	/**
+	 * Rules sending events to databases and retention policies other than dbName, the first match wins
+	 */
+	private final List<RoutingRule> routes = new ArrayList<>();
+
+	public void setDbHosts(String hostsJson) {
+		parseList(hostsJson, dbHosts);
+		dbHosts.removeIf(host -> host.trim().isEmpty());
+	}
+
 	public void setTagFields(String fieldJson) {
 		parseList(fieldJson, tagFields);
 	}
@@ -139,6 +370,36 @@ public class NozzleProperties {
 		capturedEvents.addAll(eventNames.stream().map(EventType::valueOf).collect(Collectors.toList()));
 	}
 
+	public void setDownsampledEvents(String fieldJson) {
+		List<String> eventNames = new ArrayList<>();
+		parseList(fieldJson, eventNames);
+
+		downsampledEvents.clear();
+		downsampledEvents.addAll(eventNames.stream().map(EventType::valueOf).collect(Collectors.toList()));
+	}
+
+	public void setShedOrder(String fieldJson) {
+		List<String> eventNames = new ArrayList<>();
+		parseList(fieldJson, eventNames);
+
+		shedOrder.clear();
+		shedOrder.addAll(eventNames.stream().map(EventType::valueOf).collect(Collectors.toList()));
+	}
+
+	public void setRoutes(String routesJson) {
+		routes.clear();
+
+		if (routesJson == null || routesJson.trim().isEmpty()) {
+			return;
+		}
+
+		try {
+			routes.addAll(new ObjectMapper().readValue(routesJson, RULE_LIST));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid routes: " + e.getMessage(), e);
+		}
+	}
+
 	private void parseList(String list, List<String> target) {
 		target.clear();
 
@@ -16,9 +16,19 @@
 
 package com.ecsteam.nozzle.influxdb.destination;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Return the base URL of InfluxDB
  */
 public interface MetricsDestination {
 	String getInfluxDbHost();
+
+	/**
+	 * @return the base URLs series are spread over, when InfluxDB is sharded across several nodes
+	 */
+	default List<String> getInfluxDbHosts() {
+		return Collections.singletonList(getInfluxDbHost());
+	}
 }
@@ -19,6 +19,9 @@ package com.ecsteam.nozzle.influxdb.destination;
 import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
 import lombok.RequiredArgsConstructor;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Returns the user-defined influx DB location
  */
@@ -28,6 +31,12 @@ public class StandaloneInfluxDbDestination implements MetricsDestination {
 
 	@Override
 	public String getInfluxDbHost() {
-		return properties.getDbHost();
+		return properties.getDbHosts().isEmpty() ? properties.getDbHost() : properties.getDbHosts().get(0);
+	}
+
+	@Override
+	public List<String> getInfluxDbHosts() {
+		return properties.getDbHosts().isEmpty() ? Collections.singletonList(properties.getDbHost())
+				: properties.getDbHosts();
 	}
 }
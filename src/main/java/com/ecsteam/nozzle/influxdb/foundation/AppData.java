@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.foundation;
+
+import com.ecsteam.nozzle.influxdb.lineprotocol.LineProtocolEncoder;
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.Value;
+
+/**
+ * The application, space and organization ids and names for one app, resolved when the cache was
+ * refreshed. Any of the values other than the application id may be null if the app's space or org
+ * was not found.
+ *
+ * The tags are encoded once, up front, so writing them for an event is a single copy.
+ */
+@Value
+@ToString(exclude = "tags")
+@EqualsAndHashCode(exclude = "tags")
+public class AppData {
+
+	private String applicationId;
+	private String applicationName;
+	private String spaceId;
+	private String spaceName;
+	private String organizationId;
+	private String organizationName;
+
+	@Getter(AccessLevel.NONE)
+	private byte[] tags;
+
+	public AppData(String applicationId, String applicationName, String spaceId, String spaceName,
+			String organizationId, String organizationName) {
+		this.applicationId = applicationId;
+		this.applicationName = applicationName;
+		this.spaceId = spaceId;
+		this.spaceName = spaceName;
+		this.organizationId = organizationId;
+		this.organizationName = organizationName;
+
+		this.tags = writeTags(new LineProtocolEncoder(), applicationId, applicationName, spaceId, spaceName,
+				organizationId, organizationName).toByteArray();
+	}
+
+	/**
+	 * Append this app's tags to a point
+	 *
+	 * @param encoder the point being written
+	 * @return the encoder
+	 */
+	public LineProtocolEncoder writeTags(LineProtocolEncoder encoder) {
+		return encoder.prefix(tags);
+	}
+
+	/**
+	 * Write the application, space and organization tags. The order matches the iteration order of the
+	 * HashMap previously returned by {@link AppDataCache#getAppData(String)}, so existing series keys do
+	 * not change. Missing values are written as <tt>null</tt>.
+	 *
+	 * @param encoder the point being written
+	 * @return the encoder
+	 */
+	public static LineProtocolEncoder writeTags(LineProtocolEncoder encoder, String applicationId,
+			String applicationName, String spaceId, String spaceName, String organizationId, String organizationName) {
+		return encoder.tag("spaceName", spaceName)
+				.tag("organizationId", organizationId)
+				.tag("spaceId", spaceId)
+				.tag("organizationName", organizationName)
+				.tag("applicationId", applicationId)
+				.tag("applicationName", applicationName);
+	}
+}
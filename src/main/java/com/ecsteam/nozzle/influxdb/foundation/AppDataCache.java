@@ -16,109 +16,398 @@
 
 package com.ecsteam.nozzle.influxdb.foundation;
 
-import lombok.RequiredArgsConstructor;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.OrderDirection;
+import org.cloudfoundry.client.v2.applicationusageevents.ApplicationUsageEventEntity;
+import org.cloudfoundry.client.v2.applicationusageevents.ApplicationUsageEventResource;
+import org.cloudfoundry.client.v2.applicationusageevents.ListApplicationUsageEventsRequest;
+import org.cloudfoundry.client.v2.applications.ApplicationResource;
+import org.cloudfoundry.client.v2.applications.GetApplicationRequest;
 import org.cloudfoundry.client.v2.applications.ListApplicationsRequest;
+import org.cloudfoundry.client.v2.organizations.GetOrganizationRequest;
 import org.cloudfoundry.client.v2.organizations.ListOrganizationsRequest;
+import org.cloudfoundry.client.v2.organizations.OrganizationResource;
+import org.cloudfoundry.client.v2.spaces.GetSpaceRequest;
 import org.cloudfoundry.client.v2.spaces.ListSpacesRequest;
+import org.cloudfoundry.client.v2.spaces.SpaceResource;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Application, space and organization names from the Cloud Controller, for tagging app events.
+ *
+ * Every refresh lists all the apps, spaces and orgs into new maps, off to the side, and only when all
+ * three listings have finished is a new immutable {@link Snapshot} published with a single reference
+ * swap. Readers never lock and never see a half refreshed cache. If a listing fails, the previous
+ * snapshot is kept.
+ *
+ * Between full refreshes, the cache is kept up to date from the app usage events feed. Every minute,
+ * the events since the last one seen are read and the apps they mention, with their space and org, are
+ * added or updated. Apps that were deleted are only removed by the next full refresh.
+ *
+ * The snapshot is saved to a local {@link AppDataFile} every few minutes and when the nozzle stops, and
+ * read back when it starts, so app events are tagged with names right away while the first refresh runs.
+ *
+ * An app that is not in the snapshot, typically one pushed since the last refresh, is looked up on its
+ * own in the background. The event that missed is tagged without names, the lookup is never waited
+ * for. Concurrent misses for the same app share one lookup, and an app that cannot be found, or a
+ * lookup that fails, is not tried again until the miss TTL has passed.
+ */
 @Slf4j
-@RequiredArgsConstructor
-public class AppDataCache {
+public class AppDataCache implements PublicMetrics {
 
 	private static final long CACHE_REFRESH = 1_800_000L; // 30 min
 
+	private static final long CACHE_SYNC = 60_000L; // 1 min
+
+	private static final long SNAPSHOT_SAVE = 300_000L; // 5 min
+
+	private static final long DEFAULT_MISS_TTL = 300_000L; // 5 min
+
+	// max number of apps being looked up at once, more misses are dropped and retried on a later event
+	private static final int MAX_LOADS = 16;
+
 	private final CloudFoundryClient cfClient;
 
-	private final Map<String, String> appIdToNameMap = new HashMap<>();
-	private final Map<String, String> spaceIdToNameMap = new HashMap<>();
-	private final Map<String, String> orgIdToNameMap = new HashMap<>();
+	private final long missTtlNanos;
+
+	private final AppDataFile snapshotFile;
+
+	// the last snapshot written to the file
+	private Snapshot savedSnapshot;
+
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.EMPTY);
+
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+
+	private final AtomicBoolean syncing = new AtomicBoolean();
+
+	// the last app usage event applied, null to read the feed from the start
+	private volatile String usageEventCursor;
+
+	// set once a full refresh has found where the usage events feed stands
+	private volatile boolean syncEnabled;
+
+	private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+	private final Map<String, Boolean> loading = new ConcurrentHashMap<>();
+
+	// application id -> System.nanoTime() after which it may be looked up again
+	private final Map<String, Long> unknown = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder loads = new LongAdder();
+	private final LongAdder loadFailures = new LongAdder();
+	private final LongAdder loadNanos = new LongAdder();
+	private final LongAdder syncedEvents = new LongAdder();
+
+	public AppDataCache(CloudFoundryClient cfClient) {
+		this(cfClient, DEFAULT_MISS_TTL);
+	}
+
+	/**
+	 * @param cfClient       the Cloud Controller client, null to tag app events without names
+	 * @param missTtlMillis  how long an app that could not be looked up is treated as unknown
+	 */
+	public AppDataCache(CloudFoundryClient cfClient, long missTtlMillis) {
+		this(cfClient, missTtlMillis, null);
+	}
+
+	/**
+	 * @param cfClient       the Cloud Controller client, null to tag app events without names
+	 * @param missTtlMillis  how long an app that could not be looked up is treated as unknown
+	 * @param snapshotFile   where to keep a copy of the cache between restarts, null to not keep one
+	 */
+	public AppDataCache(CloudFoundryClient cfClient, long missTtlMillis, File snapshotFile) {
+		this.cfClient = cfClient;
+		this.missTtlNanos = TimeUnit.MILLISECONDS.toNanos(missTtlMillis);
+		this.snapshotFile = snapshotFile != null ? new AppDataFile(snapshotFile) : null;
+	}
+
+	/**
+	 * Start from the saved snapshot, if there is one. The first refresh replaces it.
+	 */
+	@PostConstruct
+	public synchronized void loadSnapshot() {
+		if (snapshotFile == null || !snapshotFile.exists()) {
+			return;
+		}
 
-	private final Map<String, String> appToSpaceMap = new HashMap<>();
-	private final Map<String, String> spaceToOrgMap = new HashMap<>();
+		try {
+			List<AppData> apps = snapshotFile.read();
+
+			Snapshot loaded = Snapshot.EMPTY.with(apps);
+			if (snapshot.compareAndSet(Snapshot.EMPTY, loaded)) {
+				savedSnapshot = loaded;
+				log.info("Loaded {} apps into the App Data Cache from {}", apps.size(), snapshotFile.getFile());
+			}
+		} catch (IOException | RuntimeException e) {
+			log.warn("Could not load the App Data Cache from {}: {}", snapshotFile.getFile(), e.toString());
+		}
+	}
+
+	/**
+	 * Save the snapshot, if it changed since it was last saved
+	 */
+	@PreDestroy
+	@Scheduled(initialDelay = SNAPSHOT_SAVE, fixedDelay = SNAPSHOT_SAVE)
+	public synchronized void saveSnapshot() {
+		Snapshot current = snapshot.get();
+		if (snapshotFile == null || current == Snapshot.EMPTY || current == savedSnapshot) {
+			return;
+		}
+
+		try {
+			snapshotFile.write(current.apps.values());
+			savedSnapshot = current;
+
+			log.debug("Saved {} apps from the App Data Cache to {}", current.apps.size(), snapshotFile.getFile());
+		} catch (IOException e) {
+			log.warn("Could not save the App Data Cache to {}: {}", snapshotFile.getFile(), e.toString());
+		}
+	}
 
 	@Scheduled(fixedDelay = CACHE_REFRESH)
 	public void refreshCache() {
 		log.info("Refresh App Data Cache");
 
 		if (cfClient != null) {
-			getApps(1);
-			getSpaces(1);
-			getOrgs(1);
+			if (!refreshing.compareAndSet(false, true)) {
+				log.info("Previous App Data Cache refresh still running, skipping");
+				return;
+			}
+
+			Refresh refresh = new Refresh();
+
+			// find the newest usage event first, so the syncs pick up anything that changes during the listings
+			Mono.defer(() -> cfClient.applicationUsageEvents()
+					.list(ListApplicationUsageEventsRequest.builder()
+							.orderDirection(OrderDirection.DESCENDING)
+							.page(1)
+							.resultsPerPage(1)
+							.build()))
+					.subscribe(response -> {
+						List<ApplicationUsageEventResource> events = response.getResources();
+						refresh.usageEventCursor = events.isEmpty() ? null : events.get(0).getMetadata().getId();
+						refresh.usageEventsFound = true;
+
+						refresh.start();
+					}, error -> {
+						log.warn("Could not read the app usage events, apps will only change on full refreshes: {}",
+								error.toString());
+
+						refresh.start();
+					});
 		}
 	}
 
-	private void getApps(int page) {
-		cfClient.applicationsV2()
+	/**
+	 * Apply the app usage events since the last sync. Does nothing until a full refresh has completed.
+	 */
+	@Scheduled(initialDelay = CACHE_SYNC, fixedDelay = CACHE_SYNC)
+	public void syncCache() {
+		if (cfClient == null || !syncEnabled || refreshing.get() || !syncing.compareAndSet(false, true)) {
+			return;
+		}
+
+		getUsageEvents(new Sync(usageEventCursor), 1);
+	}
+
+	private void getUsageEvents(Sync sync, int page) {
+		if (page < 0) {
+			sync.completed();
+			return;
+		}
+
+		Mono.defer(() -> cfClient.applicationUsageEvents()
+				.list(ListApplicationUsageEventsRequest.builder()
+						.afterApplicationUsageEventId(sync.after)
+						.page(page)
+						.resultsPerPage(100)
+						.build()))
+				.subscribe(response -> {
+					for (ApplicationUsageEventResource event : response.getResources()) {
+						ApplicationUsageEventEntity entity = event.getEntity();
+						if (entity.getApplicationId() != null && entity.getSpaceId() != null) {
+							sync.events.put(entity.getApplicationId(), entity);
+						}
+						sync.cursor = event.getMetadata().getId();
+						syncedEvents.increment();
+					}
+
+					if (StringUtils.hasText(response.getNextUrl())) {
+						getUsageEvents(sync, getNextPageNumber(response.getNextUrl()));
+					} else {
+						sync.completed();
+					}
+				}, sync::failed);
+	}
+
+	private void getApps(Refresh refresh, int page) {
+		if (page < 0) {
+			refresh.completed();
+			return;
+		}
+
+		Mono.defer(() -> cfClient.applicationsV2()
 				.list(ListApplicationsRequest.builder()
 						.page(page)
 						.resultsPerPage(100)
-						.build())
-				.doOnError(Throwable::printStackTrace)
+						.build()))
 				.subscribe(response -> {
-					response.getResources().forEach(app -> {
-						appIdToNameMap.put(app.getMetadata().getId(), app.getEntity().getName());
-						appToSpaceMap.put(app.getMetadata().getId(), app.getEntity().getSpaceId());
-					});
+					for (ApplicationResource app : response.getResources()) {
+						refresh.appIdToNameMap.put(app.getMetadata().getId(), app.getEntity().getName());
+						refresh.appToSpaceMap.put(app.getMetadata().getId(), app.getEntity().getSpaceId());
+					}
 
 					if (StringUtils.hasText(response.getNextUrl())) {
-						getApps(getNextPageNumber(response.getNextUrl()));
+						getApps(refresh, getNextPageNumber(response.getNextUrl()));
+					} else {
+						refresh.completed();
 					}
-				});
+				}, refresh::failed);
 	}
 
-	private void getSpaces(int page) {
+	private void getSpaces(Refresh refresh, int page) {
 		if (page < 0) {
+			refresh.completed();
 			return;
 		}
 
-		cfClient.spaces()
+		Mono.defer(() -> cfClient.spaces()
 				.list(ListSpacesRequest.builder()
 						.page(page)
 						.resultsPerPage(100)
-						.build())
-				.doOnError(Throwable::printStackTrace)
+						.build()))
 				.subscribe(response -> {
-					response.getResources().forEach(space -> {
-						spaceIdToNameMap.put(space.getMetadata().getId(), space.getEntity().getName());
-						spaceToOrgMap.put(space.getMetadata().getId(), space.getEntity().getOrganizationId());
-					});
+					for (SpaceResource space : response.getResources()) {
+						refresh.spaceIdToNameMap.put(space.getMetadata().getId(), space.getEntity().getName());
+						refresh.spaceToOrgMap.put(space.getMetadata().getId(), space.getEntity().getOrganizationId());
+					}
 
 					if (StringUtils.hasText(response.getNextUrl())) {
-						getSpaces(getNextPageNumber(response.getNextUrl()));
+						getSpaces(refresh, getNextPageNumber(response.getNextUrl()));
+					} else {
+						refresh.completed();
 					}
-				});
+				}, refresh::failed);
 	}
 
-	private void getOrgs(int page) {
+	private void getOrgs(Refresh refresh, int page) {
 		if (page < 0) {
+			refresh.completed();
 			return;
 		}
 
-		cfClient.organizations()
+		Mono.defer(() -> cfClient.organizations()
 				.list(ListOrganizationsRequest.builder()
 						.page(page)
 						.resultsPerPage(100)
-						.build())
-				.doOnError(Throwable::printStackTrace)
+						.build()))
 				.subscribe(response -> {
-					response.getResources()
-							.forEach(org -> orgIdToNameMap.put(org.getMetadata().getId(), org.getEntity().getName()));
+					for (OrganizationResource org : response.getResources()) {
+						refresh.orgIdToNameMap.put(org.getMetadata().getId(), org.getEntity().getName());
+					}
 
 					if (StringUtils.hasText(response.getNextUrl())) {
-						getOrgs(getNextPageNumber(response.getNextUrl()));
+						getOrgs(refresh, getNextPageNumber(response.getNextUrl()));
+					} else {
+						refresh.completed();
 					}
-				});
+				}, refresh::failed);
+	}
+
+	/**
+	 * Swap in a new snapshot, and tell the listeners if any id or name changed
+	 */
+	private void publish(Snapshot next) {
+		Snapshot previous = snapshot.getAndSet(next);
+
+		long now = System.nanoTime();
+		unknown.values().removeIf(retryAfter -> now - retryAfter >= 0);
+
+		if (!previous.apps.equals(next.apps)) {
+			log.info("App Data Cache changed, {} apps", next.apps.size());
+			changeListeners.forEach(listener -> listener.changed(null));
+		}
+	}
+
+	/**
+	 * Add or update apps in the current snapshot, and tell the listeners if any changed
+	 */
+	private void merge(Collection<AppData> apps) {
+		Snapshot previous;
+		Snapshot next;
+		do {
+			previous = snapshot.get();
+			next = previous.with(apps);
+		} while (!snapshot.compareAndSet(previous, next));
+
+		if (next == previous) {
+			return;
+		}
+
+		Set<String> changed = new HashSet<>();
+		for (AppData app : apps) {
+			if (!app.equals(previous.apps.get(app.getApplicationId()))) {
+				changed.add(app.getApplicationId());
+			}
+		}
+
+		Set<String> applicationIds = Collections.unmodifiableSet(changed);
+		changeListeners.forEach(listener -> listener.changed(applicationIds));
+	}
+
+	/**
+	 * Register a callback to be run whenever a refresh, a sync or a lookup changes any of the cached ids or
+	 * names
+	 *
+	 * @param listener the callback
+	 */
+	public void addChangeListener(ChangeListener listener) {
+		changeListeners.add(listener);
+	}
+
+	/**
+	 * Told when the cached ids or names change
+	 */
+	public interface ChangeListener {
+
+		/**
+		 * @param applicationIds the apps whose data changed, or null after a full refresh, when any may have
+		 */
+		void changed(Set<String> applicationIds);
 	}
 
 	private int getNextPageNumber(String nextUrl) {
@@ -131,18 +420,325 @@ public class AppDataCache {
 		return Integer.valueOf(pageNum);
 	}
 
+	/**
+	 * @param applicationId the application guid
+	 * @return the app's ids and names, or null if the app is not in the cache
+	 */
+	public AppData getApplication(String applicationId) {
+		if (applicationId == null) {
+			return null;
+		}
+
+		Snapshot current = snapshot.get();
+
+		AppData app = current.apps.get(applicationId);
+		if (app != null) {
+			hits.increment();
+			return app;
+		}
+
+		misses.increment();
+
+		// nothing is looked up one by one until the first refresh has listed everything
+		if (current != Snapshot.EMPTY && !isUnknown(applicationId) && loading.size() < MAX_LOADS
+				&& loading.putIfAbsent(applicationId, Boolean.TRUE) == null) {
+			load(current, applicationId);
+		}
+
+		return null;
+	}
+
+	private boolean isUnknown(String applicationId) {
+		Long retryAfter = unknown.get(applicationId);
+		if (retryAfter == null) {
+			return false;
+		}
+
+		if (System.nanoTime() - retryAfter < 0) {
+			return true;
+		}
+
+		unknown.remove(applicationId, retryAfter);
+		return false;
+	}
+
+	/**
+	 * Look up one app, then its space and org unless the snapshot already has them, and add it to the
+	 * snapshot
+	 */
+	private void load(Snapshot current, String applicationId) {
+		long started = System.nanoTime();
+
+		Mono.defer(() -> cfClient.applicationsV2()
+				.get(GetApplicationRequest.builder()
+						.applicationId(applicationId)
+						.build()))
+				.then(app -> getSpace(current, app.getEntity().getSpaceId())
+						.then(space -> getOrganizationName(current, space.getOrganizationId())
+								.map(orgName -> new AppData(applicationId, app.getEntity().getName(),
+										app.getEntity().getSpaceId(), space.getName(), space.getOrganizationId(), orgName))))
+				.subscribe(app -> loaded(app, started), error -> loadFailed(applicationId, error, started));
+	}
+
+	private Mono<Space> getSpace(Snapshot current, String spaceId) {
+		Space space = current.spaces.get(spaceId);
+		if (space != null) {
+			return Mono.just(space);
+		}
+
+		return Mono.defer(() -> cfClient.spaces()
+				.get(GetSpaceRequest.builder()
+						.spaceId(spaceId)
+						.build()))
+				.map(response -> new Space(response.getEntity().getName(), response.getEntity().getOrganizationId()));
+	}
+
+	private Mono<String> getOrganizationName(Snapshot current, String organizationId) {
+		String name = current.orgs.get(organizationId);
+		if (name != null) {
+			return Mono.just(name);
+		}
+
+		return Mono.defer(() -> cfClient.organizations()
+				.get(GetOrganizationRequest.builder()
+						.organizationId(organizationId)
+						.build()))
+				.map(response -> response.getEntity().getName());
+	}
+
+	private void loaded(AppData app, long started) {
+		loadNanos.add(System.nanoTime() - started);
+		loads.increment();
+
+		// series already encoded for this app were tagged without names
+		merge(Collections.singletonList(app));
+		loading.remove(app.getApplicationId());
+
+		log.info("Looked up app {} ({}) missing from the App Data Cache", app.getApplicationName(),
+				app.getApplicationId());
+	}
+
+	private void loadFailed(String applicationId, Throwable error, long started) {
+		loadNanos.add(System.nanoTime() - started);
+		loadFailures.increment();
+
+		unknown.put(applicationId, System.nanoTime() + missTtlNanos);
+		loading.remove(applicationId);
+
+		log.debug("Could not look up app {}: {}", applicationId, error.toString());
+	}
+
+	/**
+	 * @return the number of apps in the current snapshot
+	 */
+	public int size() {
+		return snapshot.get().apps.size();
+	}
+
 	public Map<String, String> getAppData(String applicationId) {
-		String spaceId = appToSpaceMap.get(applicationId);
-		String orgId = spaceToOrgMap.get(spaceId);
+		AppData app = getApplication(applicationId);
 
 		Map<String, String> map = new HashMap<>();
 		map.put("applicationId", applicationId);
-		map.put("applicationName", appIdToNameMap.get(applicationId));
-		map.put("spaceId", spaceId);
-		map.put("spaceName", spaceIdToNameMap.get(spaceId));
-		map.put("organizationId", orgId);
-		map.put("organizationName", orgIdToNameMap.get(orgId));
+		map.put("applicationName", app != null ? app.getApplicationName() : null);
+		map.put("spaceId", app != null ? app.getSpaceId() : null);
+		map.put("spaceName", app != null ? app.getSpaceName() : null);
+		map.put("organizationId", app != null ? app.getOrganizationId() : null);
+		map.put("organizationName", app != null ? app.getOrganizationName() : null);
 
 		return map;
 	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		long loadCount = loads.sum() + loadFailures.sum();
+
+		List<Metric<?>> metrics = new ArrayList<>(8);
+		metrics.add(new Metric<>("appdata.size", size()));
+		metrics.add(new Metric<>("appdata.hits", hits.sum()));
+		metrics.add(new Metric<>("appdata.misses", misses.sum()));
+		metrics.add(new Metric<>("appdata.loads", loads.sum()));
+		metrics.add(new Metric<>("appdata.loads.failed", loadFailures.sum()));
+		metrics.add(new Metric<>("appdata.load.latency",
+				loadCount > 0 ? TimeUnit.NANOSECONDS.toMillis(loadNanos.sum() / loadCount) : 0L));
+		metrics.add(new Metric<>("appdata.unknown", unknown.size()));
+		metrics.add(new Metric<>("appdata.sync.events", syncedEvents.sum()));
+
+		return metrics;
+	}
+
+	/**
+	 * An immutable view of the cache, published whole
+	 */
+	private static final class Snapshot {
+
+		static final Snapshot EMPTY = new Snapshot(Collections.emptyMap(), Collections.emptyMap(),
+				Collections.emptyMap());
+
+		private final Map<String, AppData> apps;
+		private final Map<String, Space> spaces;
+		private final Map<String, String> orgs;
+
+		private Snapshot(Map<String, AppData> apps, Map<String, Space> spaces, Map<String, String> orgs) {
+			this.apps = apps;
+			this.spaces = spaces;
+			this.orgs = orgs;
+		}
+
+		/**
+		 * @return a copy of this snapshot with the apps, and their spaces and orgs, added or updated. This
+		 * snapshot if none of them changed.
+		 */
+		Snapshot with(Collection<AppData> added) {
+			Map<String, AppData> apps = null;
+			Map<String, Space> spaces = null;
+			Map<String, String> orgs = null;
+
+			for (AppData app : added) {
+				if (app.equals(this.apps.get(app.getApplicationId()))) {
+					continue;
+				}
+
+				if (apps == null) {
+					apps = new HashMap<>(this.apps);
+					spaces = new HashMap<>(this.spaces);
+					orgs = new HashMap<>(this.orgs);
+				}
+
+				apps.put(app.getApplicationId(), app);
+
+				if (app.getSpaceId() != null) {
+					spaces.put(app.getSpaceId(), new Space(app.getSpaceName(), app.getOrganizationId()));
+				}
+
+				if (app.getOrganizationId() != null) {
+					orgs.put(app.getOrganizationId(), app.getOrganizationName());
+				}
+			}
+
+			if (apps == null) {
+				return this;
+			}
+
+			return new Snapshot(Collections.unmodifiableMap(apps), Collections.unmodifiableMap(spaces),
+					Collections.unmodifiableMap(orgs));
+		}
+	}
+
+	@Value
+	private static class Space {
+		private String name;
+		private String organizationId;
+	}
+
+	/**
+	 * The maps for one refresh. Each listing fills its own maps, one page after another. The last
+	 * listing to complete builds the snapshot, the countdown makes the other listings' writes visible.
+	 */
+	private final class Refresh {
+
+		private final Map<String, String> appIdToNameMap = new HashMap<>();
+		private final Map<String, String> spaceIdToNameMap = new HashMap<>();
+		private final Map<String, String> orgIdToNameMap = new HashMap<>();
+
+		private final Map<String, String> appToSpaceMap = new HashMap<>();
+		private final Map<String, String> spaceToOrgMap = new HashMap<>();
+
+		private final AtomicInteger remaining = new AtomicInteger(3);
+
+		private volatile boolean failed;
+
+		private volatile boolean usageEventsFound;
+		private volatile String usageEventCursor;
+
+		void start() {
+			getApps(this, 1);
+			getSpaces(this, 1);
+			getOrgs(this, 1);
+		}
+
+		void completed() {
+			if (remaining.decrementAndGet() == 0) {
+				try {
+					if (!failed) {
+						publish(build());
+
+						if (usageEventsFound) {
+							AppDataCache.this.usageEventCursor = usageEventCursor;
+							syncEnabled = true;
+						}
+					}
+				} finally {
+					refreshing.set(false);
+				}
+			}
+		}
+
+		void failed(Throwable error) {
+			log.error("App Data Cache refresh failed, keeping the previous data", error);
+			failed = true;
+			completed();
+		}
+
+		private Snapshot build() {
+			Map<String, AppData> apps = new HashMap<>(appIdToNameMap.size() * 2);
+
+			appIdToNameMap.forEach((appId, appName) -> {
+				String spaceId = appToSpaceMap.get(appId);
+				String orgId = spaceToOrgMap.get(spaceId);
+
+				apps.put(appId, new AppData(appId, appName, spaceId, spaceIdToNameMap.get(spaceId), orgId,
+						orgIdToNameMap.get(orgId)));
+			});
+
+			Map<String, Space> spaces = new HashMap<>(spaceIdToNameMap.size() * 2);
+			spaceIdToNameMap.forEach((spaceId, spaceName) ->
+					spaces.put(spaceId, new Space(spaceName, spaceToOrgMap.get(spaceId))));
+
+			return new Snapshot(Collections.unmodifiableMap(apps), Collections.unmodifiableMap(spaces),
+					Collections.unmodifiableMap(new HashMap<>(orgIdToNameMap)));
+		}
+	}
+
+	/**
+	 * The latest usage event for each app since the last sync. Pages are read one after another.
+	 */
+	private final class Sync {
+
+		private final String after;
+
+		private final Map<String, ApplicationUsageEventEntity> events = new LinkedHashMap<>();
+
+		private volatile String cursor;
+
+		Sync(String after) {
+			this.after = after;
+			this.cursor = after;
+		}
+
+		void completed() {
+			Snapshot current = snapshot.get();
+
+			Flux.fromIterable(events.values())
+					.concatMap(event -> getOrganizationName(current, event.getOrganizationId())
+							.map(orgName -> new AppData(event.getApplicationId(), event.getApplicationName(),
+									event.getSpaceId(), event.getSpaceName(), event.getOrganizationId(), orgName))
+							.otherwise(error -> Mono.empty()))
+					.collectList()
+					.subscribe(apps -> {
+						merge(apps);
+						usageEventCursor = cursor;
+						syncing.set(false);
+
+						if (!apps.isEmpty()) {
+							log.debug("Synced {} apps from the app usage events", apps.size());
+						}
+					}, this::failed);
+		}
+
+		void failed(Throwable error) {
+			log.warn("App Data Cache sync failed, will retry: {}", error.toString());
+			syncing.set(false);
+		}
+	}
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.foundation;
+
+import lombok.Getter;
+import lombok.Value;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A local copy of the app data, so the nozzle can tag app events as soon as it starts instead of waiting
+ * for the first refresh.
+ *
+ * <tt>magic (int) | version (short) | saved at (long, epoch ms) | orgs | spaces | apps | CRC32 (int)</tt>
+ *
+ * Orgs are written as id and name, spaces as id, name and the index of their org, apps as id, name and
+ * the index of their space, so each name is stored once. Strings are modified UTF-8, each preceded by a
+ * flag since any name may be missing. The file is written next to its final location and moved into
+ * place, a reader never sees half a file.
+ */
+public class AppDataFile {
+
+	private static final int MAGIC = 0x4E5A4144; // NZAD
+
+	private static final short VERSION = 1;
+
+	@Getter
+	private final File file;
+
+	public AppDataFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return whether there is a file to read
+	 */
+	public boolean exists() {
+		return file.isFile();
+	}
+
+	/**
+	 * Save the apps, replacing the previous file
+	 *
+	 * @param apps the apps to save
+	 * @throws IOException if the file cannot be written
+	 */
+	public void write(Collection<AppData> apps) throws IOException {
+		Map<String, Integer> orgs = new LinkedHashMap<>();
+		Map<SpaceKey, Integer> spaces = new LinkedHashMap<>();
+		Map<String, String> orgNames = new HashMap<>();
+
+		for (AppData app : apps) {
+			if (!orgs.containsKey(app.getOrganizationId())) {
+				orgs.put(app.getOrganizationId(), orgs.size());
+				orgNames.put(app.getOrganizationId(), app.getOrganizationName());
+			}
+
+			SpaceKey space = new SpaceKey(app.getSpaceId(), app.getSpaceName(), app.getOrganizationId());
+			if (!spaces.containsKey(space)) {
+				spaces.put(space, spaces.size());
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + apps.size() * 96);
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeLong(System.currentTimeMillis());
+
+		out.writeInt(orgs.size());
+		for (String orgId : orgs.keySet()) {
+			writeString(out, orgId);
+			writeString(out, orgNames.get(orgId));
+		}
+
+		out.writeInt(spaces.size());
+		for (SpaceKey space : spaces.keySet()) {
+			writeString(out, space.getId());
+			writeString(out, space.getName());
+			out.writeInt(orgs.get(space.getOrganizationId()));
+		}
+
+		out.writeInt(apps.size());
+		for (AppData app : apps) {
+			writeString(out, app.getApplicationId());
+			writeString(out, app.getApplicationName());
+			out.writeInt(spaces.get(new SpaceKey(app.getSpaceId(), app.getSpaceName(), app.getOrganizationId())));
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeInt((int) crc.getValue());
+		out.flush();
+
+		Path target = file.toPath();
+		if (target.getParent() != null) {
+			Files.createDirectories(target.getParent());
+		}
+
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		Files.write(temp, bytes.toByteArray());
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Read the saved apps
+	 *
+	 * @return the apps, in the order they were saved
+	 * @throws IOException if the file cannot be read, is corrupt or was written by an unknown version
+	 */
+	public List<AppData> read() throws IOException {
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		if (bytes.length < 4) {
+			throw new IOException("Truncated app data file " + file);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 4);
+
+		if (ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt() != (int) crc.getValue()) {
+			throw new IOException("Corrupt app data file " + file);
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not an app data file " + file);
+		}
+
+		short version = in.readShort();
+		if (version != VERSION) {
+			throw new IOException("Unsupported app data file version " + version);
+		}
+
+		in.readLong(); // saved at
+
+		int orgCount = in.readInt();
+		String[] orgIds = new String[orgCount];
+		String[] orgNames = new String[orgCount];
+		for (int i = 0; i < orgCount; ++i) {
+			orgIds[i] = readString(in);
+			orgNames[i] = readString(in);
+		}
+
+		int spaceCount = in.readInt();
+		String[] spaceIds = new String[spaceCount];
+		String[] spaceNames = new String[spaceCount];
+		int[] spaceOrgs = new int[spaceCount];
+		for (int i = 0; i < spaceCount; ++i) {
+			spaceIds[i] = readString(in);
+			spaceNames[i] = readString(in);
+			spaceOrgs[i] = in.readInt();
+		}
+
+		int appCount = in.readInt();
+		List<AppData> apps = new ArrayList<>(appCount);
+		for (int i = 0; i < appCount; ++i) {
+			String appId = readString(in);
+			String appName = readString(in);
+			int space = in.readInt();
+			int org = spaceOrgs[space];
+
+			apps.add(new AppData(appId, appName, spaceIds[space], spaceNames[space], orgIds[org], orgNames[org]));
+		}
+
+		return apps;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	@Value
+	private static class SpaceKey {
+		private String id;
+		private String name;
+		private String organizationId;
+	}
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.lineprotocol;
+
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a single InfluxDB line protocol point straight into a reusable UTF-8 byte buffer.
+ *
+ * <tt>measurement[,tag=value]* field=value[,field=value]* timestamp</tt>
+ *
+ * Numbers are formatted straight into the buffer from primitives. Integral values are written with the
+ * <tt>i</tt> suffix so InfluxDB stores them as integers, unless the encoder was created without integer
+ * fields. Measurements, tags and string fields are escaped as the line protocol requires.
+ *
+ * An encoder is not thread safe. It is meant to be held per thread and {@link #reset() reset}
+ * before every point, so that encoding a point does not allocate once the buffer has grown
+ * to fit the largest point seen.
+ */
+public class LineProtocolEncoder {
+
+	private static final int INITIAL_CAPACITY = 512;
+
+	private static final byte[] NULL = "null".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.UTF_8);
+
+	// doubles below this magnitude that have no fractional part are exactly representable as a long
+	private static final double MAX_INTEGRAL_DOUBLE = 1e15;
+
+	private static final int ESCAPE_MEASUREMENT = 1;
+	private static final int ESCAPE_KEY = 2;
+	private static final int ESCAPE_STRING_FIELD = 3;
+
+	private final boolean integerFields;
+
+	private byte[] buffer = new byte[INITIAL_CAPACITY];
+	private int position;
+
+	private int fieldCount;
+
+	// the length of the measurement and tags, set when the first field starts
+	private int seriesLength;
+
+	// scratch space for floating point formatting, see writeDouble
+	private final StringBuilder scratch = new StringBuilder(32);
+
+	public LineProtocolEncoder() {
+		this(false);
+	}
+
+	/**
+	 * @param integerFields whether long and int fields are written as InfluxDB integers. If false, they are
+	 *                      written without the <tt>i</tt> suffix and stored as floats.
+	 */
+	public LineProtocolEncoder(boolean integerFields) {
+		this.integerFields = integerFields;
+	}
+
+	/**
+	 * Discard the current point and start a new one
+	 *
+	 * @return this encoder
+	 */
+	public LineProtocolEncoder reset() {
+		position = 0;
+		fieldCount = 0;
+		seriesLength = 0;
+		return this;
+	}
+
+	/**
+	 * Start a point with the measurement <tt>origin.name</tt>
+	 *
+	 * @param origin the origin of the envelope
+	 * @param name   the metric name
+	 * @return this encoder
+	 */
+	public LineProtocolEncoder measurement(String origin, String name) {
+		writeString(origin, ESCAPE_MEASUREMENT);
+		writeByte('.');
+		writeString(name, ESCAPE_MEASUREMENT);
+		return this;
+	}
+
+	/**
+	 * Append an already encoded measurement and tag set
+	 *
+	 * @param prefix bytes previously produced by this encoder
+	 * @return this encoder
+	 */
+	public LineProtocolEncoder prefix(byte[] prefix) {
+		writeBytes(prefix);
+		return this;
+	}
+
+	/**
+	 * Append <tt>,key=value</tt> to the series. A null value is written as <tt>null</tt>.
+	 *
+	 * @param key   the tag key
+	 * @param value the tag value
+	 * @return this encoder
+	 */
+	public LineProtocolEncoder tag(String key, String value) {
+		writeByte(',');
+		writeString(key, ESCAPE_KEY);
+		writeByte('=');
+		writeString(value, ESCAPE_KEY);
+		return this;
+	}
+
+	/**
+	 * Append an integer field
+	 *
+	 * @param key   the field name
+	 * @param value the field value
+	 * @return this encoder
+	 */
+	public LineProtocolEncoder field(String key, long value) {
+		if (startField(key)) {
+			writeLong(value);
+			if (integerFields) {
+				writeByte('i');
+			}
+		}
+		return this;
+	}
+
+	public LineProtocolEncoder field(String key, int value) {
+		return field(key, (long) value);
+	}
+
+	/**
+	 * Append a float field. NaN and infinite values are skipped, InfluxDB rejects them.
+	 *
+	 * @param key   the field name
+	 * @param value the field value
+	 * @return this encoder
+	 */
+	public LineProtocolEncoder field(String key, double value) {
+		if (!Double.isNaN(value) && !Double.isInfinite(value) && startField(key)) {
+			writeDouble(value);
+		}
+		return this;
+	}
+
+	public LineProtocolEncoder field(String key, boolean value) {
+		if (startField(key)) {
+			writeBytes(value ? TRUE : FALSE);
+		}
+		return this;
+	}
+
+	/*
+	 Null safe variants for the boxed getters of the envelope types. They unbox, they never box.
+	 */
+
+	public LineProtocolEncoder field(String key, Long value) {
+		return value != null ? field(key, value.longValue()) : this;
+	}
+
+	public LineProtocolEncoder field(String key, Integer value) {
+		return value != null ? field(key, value.longValue()) : this;
+	}
+
+	public LineProtocolEncoder field(String key, Double value) {
+		return value != null ? field(key, value.doubleValue()) : this;
+	}
+
+	/**
+	 * Append a quoted string field, skipped if the value is empty or blank
+	 *
+	 * @param key   the field name
+	 * @param value the field value
+	 * @return this encoder
+	 */
+	public LineProtocolEncoder field(String key, String value) {
+		if (StringUtils.hasText(value) && startField(key)) {
+			writeByte('"');
+			writeString(value, ESCAPE_STRING_FIELD);
+			writeByte('"');
+		}
+		return this;
+	}
+
+	/**
+	 * Append a quoted string field made of the values joined by commas, skipped if the list is empty
+	 * or the result would be blank
+	 *
+	 * @param key    the field name
+	 * @param values the values to join
+	 * @return this encoder
+	 */
+	public LineProtocolEncoder field(String key, List<String> values) {
+		if (CollectionUtils.isEmpty(values) || (values.size() == 1 && !StringUtils.hasText(values.get(0)))) {
+			return this;
+		}
+
+		if (startField(key)) {
+			writeByte('"');
+			for (int i = 0; i < values.size(); ++i) {
+				if (i > 0) {
+					writeByte(',');
+				}
+				writeString(values.get(i), ESCAPE_STRING_FIELD);
+			}
+			writeByte('"');
+		}
+		return this;
+	}
+
+	/**
+	 * Finish the point with its timestamp
+	 *
+	 * @param timestamp the envelope timestamp in nanoseconds
+	 * @return this encoder
+	 */
+	public LineProtocolEncoder timestamp(Long timestamp) {
+		if (timestamp != null) {
+			writeByte(' ');
+			writeLong(timestamp);
+		}
+		return this;
+	}
+
+	/**
+	 * @return true if at least one field has been written. A point without fields is rejected by InfluxDB.
+	 */
+	public boolean hasFields() {
+		return fieldCount > 0;
+	}
+
+	public int length() {
+		return position;
+	}
+
+	/**
+	 * @return the length of the series key, the measurement and tags at the start of the buffer, or 0 if no
+	 * field has been written yet
+	 */
+	public int seriesLength() {
+		return seriesLength;
+	}
+
+	/**
+	 * @return the buffer the point is encoded into, valid up to {@link #length()}. Only until the next write.
+	 */
+	public byte[] buffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return a copy of the encoded point
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, position);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buffer, 0, position, StandardCharsets.UTF_8);
+	}
+
+	private boolean startField(String key) {
+		if (!StringUtils.hasText(key)) {
+			return false;
+		}
+
+		if (fieldCount++ == 0) {
+			seriesLength = position;
+			writeByte(' ');
+		} else {
+			writeByte(',');
+		}
+		writeString(key, ESCAPE_KEY);
+		writeByte('=');
+		return true;
+	}
+
+	private void writeByte(int b) {
+		ensureCapacity(1);
+		buffer[position++] = (byte) b;
+	}
+
+	private void writeBytes(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		position += bytes.length;
+	}
+
+	/**
+	 * UTF-8 encode a String into the buffer without going through an intermediate byte[], escaping
+	 * the characters that are special in the given part of the line
+	 */
+	private void writeString(String value, int escape) {
+		if (value == null) {
+			writeBytes(NULL);
+			return;
+		}
+
+		int length = value.length();
+		// worst case, every char becomes three bytes, or is escaped
+		ensureCapacity(length * 3);
+
+		for (int i = 0; i < length; ++i) {
+			char c = value.charAt(i);
+
+			if (c < 0x80) {
+				if (needsEscape(c, escape)) {
+					buffer[position++] = '\\';
+				}
+				buffer[position++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[position++] = (byte) (0xC0 | (c >> 6));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// unpaired surrogate, same replacement the JDK encoder uses
+				buffer[position++] = '?';
+			} else {
+				buffer[position++] = (byte) (0xE0 | (c >> 12));
+				buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private static boolean needsEscape(char c, int escape) {
+		switch (escape) {
+			case ESCAPE_MEASUREMENT:
+				return c == ',' || c == ' ';
+			case ESCAPE_KEY:
+				return c == ',' || c == '=' || c == ' ';
+			case ESCAPE_STRING_FIELD:
+				return c == '"' || c == '\\';
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Write the decimal digits of a long, identical to <tt>Long.toString(value)</tt>
+	 */
+	private void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			writeBytes(MIN_LONG);
+			return;
+		}
+
+		ensureCapacity(20);
+
+		if (value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10) {
+			++digits;
+		}
+
+		int end = position + digits;
+		for (int i = end - 1; i >= position; --i) {
+			buffer[i] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+
+		position = end;
+	}
+
+	/**
+	 * Write a double. Whole numbers, which most byte and count metrics are, go through the long formatter
+	 * and are written without a fractional part. Everything else is formatted as the shortest string that
+	 * reads back as the same double, <tt>Double.toString(value)</tt>. StringBuilder formats the double in
+	 * place, so the only copy is from the scratch chars into the buffer.
+	 */
+	private void writeDouble(double value) {
+		if (Math.abs(value) < MAX_INTEGRAL_DOUBLE && value == (long) value) {
+			writeLong((long) value);
+			return;
+		}
+
+		scratch.setLength(0);
+		scratch.append(value);
+
+		int length = scratch.length();
+		ensureCapacity(length);
+
+		for (int i = 0; i < length; ++i) {
+			buffer[position++] = (byte) scratch.charAt(i);
+		}
+	}
+
+	private void ensureCapacity(int additional) {
+		int required = position + additional;
+
+		if (required > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.SmartLifecycle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the batch size of the {@link FlushPolicy} to what InfluxDB handles at the moment, between
+ * <tt>minPoints</tt> and the policy's <tt>maxPoints</tt>.
+ *
+ * Every <tt>interval</tt> ms it looks at the write requests the {@link InfluxDBBatchSender} made since the
+ * last look, and at how full the {@link BatchedEventListener} is:
+ * <ul>
+ * <li>if the mean request took longer than the latency target, the batch size is cut in proportion, by
+ * half at most</li>
+ * <li>if more than 5% of the requests failed, it is halved</li>
+ * <li>if the requests are well within the target and points are backing up, in the buffers or as pending
+ * batches, it grows by a twentieth of the range, since fewer larger requests move more points</li>
+ * <li>otherwise it stays, a bigger batch would only wait longer to fill</li>
+ * </ul>
+ * Cutting fast and growing slowly keeps the latency near the target without oscillating.
+ */
+@Slf4j
+public class BatchSizeController implements Runnable, SmartLifecycle, PublicMetrics {
+
+	// above this share of failed requests, the batch size is halved
+	static final double MAX_ERROR_RATE = 0.05;
+
+	// the batch size only grows while the latency is below this share of the target
+	static final double HEADROOM = 0.8;
+
+	// a buffer at least this full means points are backing up
+	static final double BACKLOG_FILL = 0.05;
+
+	private final FlushPolicy policy;
+	private final WriteStats stats;
+	private final BatchedEventListener batcher;
+
+	private final int minPoints;
+	private final int step;
+	private final double latencyTargetMillis;
+	private final long interval;
+
+	// the totals at the last look, scheduler thread only
+	private long lastWrites;
+	private long lastFailures;
+	private long lastNanos;
+
+	private volatile double latencyMillis;
+	private volatile double errorRate;
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param policy              the policy whose target batch size is adjusted
+	 * @param minPoints           the smallest batch size
+	 * @param latencyTargetMillis the mean write latency to stay below
+	 * @param interval            how often in ms the batch size is adjusted, 0 disables the controller
+	 * @param stats               the sender's write stats
+	 * @param batcher             whose buffers show whether points are backing up
+	 */
+	public BatchSizeController(FlushPolicy policy, int minPoints, long latencyTargetMillis, long interval,
+							   WriteStats stats, BatchedEventListener batcher) {
+		this.policy = policy;
+		this.minPoints = Math.max(1, Math.min(minPoints, policy.getMaxPoints()));
+		this.step = Math.max(1, (policy.getMaxPoints() - this.minPoints) / 20);
+		this.latencyTargetMillis = Math.max(1, latencyTargetMillis);
+		this.interval = interval;
+		this.stats = stats;
+		this.batcher = batcher;
+	}
+
+	public boolean isEnabled() {
+		return interval > 0;
+	}
+
+	@Override
+	public void run() {
+		try {
+			adjust();
+		} catch (RuntimeException e) {
+			log.error("Could not adjust the batch size", e);
+		}
+	}
+
+	/**
+	 * Look at the requests since the last look and set the batch size
+	 */
+	void adjust() {
+		long writes = stats.getWrites();
+		long failures = stats.getFailures();
+		long nanos = stats.getNanos();
+
+		long intervalWrites = writes - lastWrites;
+		if (intervalWrites > 0) {
+			latencyMillis = (nanos - lastNanos) / 1e6 / intervalWrites;
+			errorRate = (double) (failures - lastFailures) / intervalWrites;
+		}
+
+		lastWrites = writes;
+		lastFailures = failures;
+		lastNanos = nanos;
+
+		int capacity = batcher.capacity();
+		double fill = capacity > 0 ? (double) batcher.size() / capacity : 0;
+		boolean saturated = batcher.getPendingBatches() >= batcher.getMaxPendingBatches();
+
+		int current = policy.getTargetPoints();
+		int next = decide(current, intervalWrites, latencyMillis, errorRate, fill, saturated);
+
+		if (next != current) {
+			log.debug("Batch size {} -> {}: {} writes, {} ms mean latency, {} error rate, {} buffer fill",
+					current, next, intervalWrites, latencyMillis, errorRate, fill);
+			policy.setTargetPoints(next);
+		}
+	}
+
+	/**
+	 * @param current       the current batch size
+	 * @param writes        the number of requests in the interval
+	 * @param latencyMillis their mean latency
+	 * @param errorRate     the share of them that failed
+	 * @param fill          how full the buffers are, 0 to 1
+	 * @param saturated     whether the max number of batches is pending
+	 * @return the next batch size
+	 */
+	int decide(int current, long writes, double latencyMillis, double errorRate, double fill, boolean saturated) {
+		// nothing was written, nothing was learned
+		if (writes == 0) {
+			return current;
+		}
+
+		int next = current;
+		if (errorRate > MAX_ERROR_RATE) {
+			next = current / 2;
+		} else if (latencyMillis > latencyTargetMillis) {
+			next = (int) (current * Math.max(0.5, Math.min(0.9, latencyTargetMillis / latencyMillis)));
+		} else if (latencyMillis < latencyTargetMillis * HEADROOM && (fill >= BACKLOG_FILL || saturated)) {
+			next = current + step;
+		}
+
+		return Math.max(minPoints, Math.min(policy.getMaxPoints(), next));
+	}
+
+	@Override
+	public void start() {
+		if (!isEnabled() || scheduler != null) {
+			return;
+		}
+
+		log.info("Adjusting the batch size between {} and {} every {} ms, for a {} ms write latency",
+				minPoints, policy.getMaxPoints(), interval, latencyTargetMillis);
+
+		lastWrites = stats.getWrites();
+		lastFailures = stats.getFailures();
+		lastNanos = stats.getNanos();
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "influxdb-batch-size");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		scheduler.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	@Override
+	public boolean isAutoStartup() {
+		return true;
+	}
+
+	@Override
+	public void stop(Runnable callback) {
+		stop();
+		callback.run();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return scheduler != null;
+	}
+
+	@Override
+	public int getPhase() {
+		return -50;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>(3);
+		metrics.add(new Metric<>("batches.size.target", policy.getTargetPoints()));
+		metrics.add(new Metric<>("batches.write.latency", latencyMillis));
+		metrics.add(new Metric<>("batches.write.errorRate", errorRate));
+
+		return metrics;
+	}
+}
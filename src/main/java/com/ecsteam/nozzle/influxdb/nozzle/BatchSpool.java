@@ -0,0 +1,383 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * An on-disk FIFO of batch bodies that could not be written to InfluxDB.
+ *
+ * Batches are appended to segment files, each record being
+ *
+ * <tt>length (int) | spooled at (long, epoch ms) | CRC32 of the body (int) | body</tt>
+ *
+ * A new segment is started once the current one reaches <tt>maxBytes / 8</tt>, and a segment is deleted
+ * once every batch in it has been replayed. When the spool is full, the oldest segment is dropped to make
+ * room. The position of every record is kept in memory, and rebuilt from the segments on startup.
+ *
+ * The replay position is not persisted, so after a restart a partly replayed segment is replayed again
+ * from the start. InfluxDB overwrites identical points, so replaying a batch twice is harmless.
+ */
+@Slf4j
+public class BatchSpool implements PublicMetrics {
+
+	private static final int HEADER_LENGTH = 16;
+
+	private static final String SUFFIX = ".seg";
+
+	@Getter
+	private final boolean enabled;
+
+	private final File directory;
+
+	// lowered by setMaxBytes when the spool shares its budget with others
+	private long maxBytes;
+	private long segmentBytes;
+
+	private final Deque<Record> records = new ArrayDeque<>();
+
+	private long totalBytes;
+	private long droppedBatches;
+
+	private long activeSegment = -1;
+	private long activeSegmentBytes;
+	private FileChannel activeChannel;
+
+	/**
+	 * @param directory where to keep the segments
+	 * @param maxBytes  the max size of all segments together, 0 disables the spool
+	 */
+	public BatchSpool(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.segmentBytes = Math.max(HEADER_LENGTH, maxBytes / 8);
+		this.enabled = maxBytes > 0 && open();
+	}
+
+	/**
+	 * Change the max size of the spool. If it is smaller than the batches spooled, the oldest are dropped
+	 * on the next append.
+	 *
+	 * @param maxBytes the max size of all segments together, more than 0
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.segmentBytes = Math.max(HEADER_LENGTH, maxBytes / 8);
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Add a batch at the end of the spool, dropping the oldest batches if it is full
+	 *
+	 * @param body the uncompressed body of the batch
+	 * @return false if the batch could not be written
+	 */
+	public synchronized boolean append(byte[] body) {
+		long size = HEADER_LENGTH + body.length;
+		if (!enabled || size > maxBytes) {
+			return false;
+		}
+
+		while (totalBytes + size > maxBytes && !records.isEmpty()) {
+			dropOldestSegment();
+		}
+
+		try {
+			if (activeChannel == null || activeSegmentBytes >= segmentBytes) {
+				roll();
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(body);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(body.length).putLong(System.currentTimeMillis()).putInt((int) crc.getValue()).flip();
+
+			long offset = activeSegmentBytes;
+			ByteBuffer[] buffers = {header, ByteBuffer.wrap(body)};
+			while (buffers[1].hasRemaining()) {
+				activeChannel.write(buffers);
+			}
+
+			records.addLast(new Record(activeSegment, offset, body.length, header.getLong(4), header.getInt(12)));
+			activeSegmentBytes += size;
+			totalBytes += size;
+
+			return true;
+		} catch (IOException e) {
+			log.error("Failed to spool a batch of {} bytes: {}", body.length, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @return the oldest batch, or null if the spool is empty
+	 */
+	public synchronized Batch peek() {
+		while (!records.isEmpty()) {
+			Record head = records.peekFirst();
+
+			try (FileChannel channel = FileChannel.open(segmentPath(head.segment), StandardOpenOption.READ)) {
+				ByteBuffer body = ByteBuffer.allocate(head.length);
+				long position = head.offset + HEADER_LENGTH;
+				while (body.hasRemaining() && channel.read(body, position + body.position()) >= 0) {
+					// keep reading
+				}
+
+				CRC32 crc = new CRC32();
+				crc.update(body.array(), 0, body.position());
+
+				if (!body.hasRemaining() && (int) crc.getValue() == head.crc) {
+					return new Batch(head, body.array());
+				}
+
+				log.warn("Spooled batch in segment {} is corrupt, skipping it", head.segment);
+			} catch (IOException e) {
+				log.warn("Failed to read spooled batch from segment {}, skipping it: {}", head.segment, e.getMessage());
+			}
+
+			remove();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Remove a batch returned by {@link #peek()}, once it has been replayed. A full spool may have dropped
+	 * it in the meantime, then the batches spooled since are left alone.
+	 *
+	 * @param batch the replayed batch
+	 * @return false if the batch was no longer the oldest
+	 */
+	public synchronized boolean advance(Batch batch) {
+		if (records.isEmpty() || records.peekFirst() != batch.record) {
+			return false;
+		}
+
+		remove();
+		return true;
+	}
+
+	public synchronized int depth() {
+		return records.size();
+	}
+
+	public synchronized long bytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @return how long ago, in ms, the oldest batch was spooled, or 0 if the spool is empty
+	 */
+	public synchronized long age() {
+		return records.isEmpty() ? 0 : Math.max(0, System.currentTimeMillis() - records.peekFirst().spooledAt);
+	}
+
+	public synchronized void close() {
+		closeActive();
+	}
+
+	@Override
+	public synchronized Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>(4);
+		metrics.add(new Metric<>("spool.batches", records.size()));
+		metrics.add(new Metric<>("spool.bytes", totalBytes));
+		metrics.add(new Metric<>("spool.age", age()));
+		metrics.add(new Metric<>("spool.dropped", droppedBatches));
+
+		return metrics;
+	}
+
+	private void remove() {
+		Record head = records.removeFirst();
+		totalBytes -= HEADER_LENGTH + head.length;
+
+		Record next = records.peekFirst();
+		if (next == null || next.segment != head.segment) {
+			if (head.segment == activeSegment) {
+				closeActive();
+			}
+			delete(head.segment);
+		}
+	}
+
+	private void dropOldestSegment() {
+		long segment = records.peekFirst().segment;
+
+		int dropped = 0;
+		while (!records.isEmpty() && records.peekFirst().segment == segment) {
+			Record record = records.removeFirst();
+			totalBytes -= HEADER_LENGTH + record.length;
+			++dropped;
+		}
+
+		droppedBatches += dropped;
+		log.warn("Spool is full, dropped {} of the oldest batches", dropped);
+
+		if (segment == activeSegment) {
+			closeActive();
+		}
+		delete(segment);
+	}
+
+	private void roll() throws IOException {
+		closeActive();
+
+		activeSegment = Math.max(activeSegment + 1, records.isEmpty() ? 0 : records.peekLast().segment + 1);
+		activeSegmentBytes = 0;
+		activeChannel = FileChannel.open(segmentPath(activeSegment), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private void closeActive() {
+		if (activeChannel != null) {
+			try {
+				activeChannel.close();
+			} catch (IOException e) {
+				log.warn("Failed to close spool segment {}: {}", activeSegment, e.getMessage());
+			}
+			activeChannel = null;
+		}
+	}
+
+	private void delete(long segment) {
+		try {
+			Files.deleteIfExists(segmentPath(segment));
+		} catch (IOException e) {
+			log.warn("Failed to delete spool segment {}: {}", segment, e.getMessage());
+		}
+	}
+
+	/**
+	 * Create the directory and index the segments left by a previous run
+	 */
+	private boolean open() {
+		try {
+			Files.createDirectories(directory.toPath());
+
+			List<Long> segments;
+			try (Stream<Path> files = Files.list(directory.toPath())) {
+				segments = files.map(path -> path.getFileName().toString())
+						.filter(name -> name.endsWith(SUFFIX))
+						.map(name -> Long.parseLong(name.substring(0, name.length() - SUFFIX.length())))
+						.sorted()
+						.collect(Collectors.toList());
+			}
+
+			for (Long segment : segments) {
+				index(segment);
+				activeSegment = segment;
+			}
+
+			if (!records.isEmpty()) {
+				log.info("Found {} spooled batches ({} bytes) to replay", records.size(), totalBytes);
+			}
+
+			return true;
+		} catch (IOException | NumberFormatException e) {
+			log.error("Failed to open the batch spool in {}, spooling is disabled: {}", directory, e.getMessage());
+			return false;
+		}
+	}
+
+	private void index(long segment) throws IOException {
+		int found = 0;
+
+		try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long offset = 0;
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			while (offset + HEADER_LENGTH <= size) {
+				header.clear();
+				channel.read(header, offset);
+
+				int length = header.getInt(0);
+				if (length < 0 || offset + HEADER_LENGTH + length > size) {
+					log.warn("Spool segment {} is truncated at {}, ignoring the rest", segment, offset);
+					break;
+				}
+
+				records.addLast(new Record(segment, offset, length, header.getLong(4), header.getInt(12)));
+				totalBytes += HEADER_LENGTH + length;
+				offset += HEADER_LENGTH + length;
+				++found;
+			}
+		}
+
+		if (found == 0) {
+			delete(segment);
+		}
+	}
+
+	private Path segmentPath(long segment) {
+		return new File(directory, String.format("%020d%s", segment, SUFFIX)).toPath();
+	}
+
+	/**
+	 * A spooled batch, as returned by {@link #peek()}
+	 */
+	public static final class Batch {
+		private final Record record;
+
+		@Getter
+		private final byte[] body;
+
+		private Batch(Record record, byte[] body) {
+			this.record = record;
+			this.body = body;
+		}
+	}
+
+	private static class Record {
+		private final long segment;
+		private final long offset;
+		private final int length;
+		private final long spooledAt;
+		private final int crc;
+
+		Record(long segment, long offset, int length, long spooledAt, int crc) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.spooledAt = spooledAt;
+			this.crc = crc;
+		}
+	}
+}
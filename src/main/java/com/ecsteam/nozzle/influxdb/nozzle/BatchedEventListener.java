@@ -15,45 +15,459 @@
 
 package com.ecsteam.nozzle.influxdb.nozzle;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.SmartLifecycle;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
-@RequiredArgsConstructor
+/**
+ * Batches encoded messages for the sender. Messages are partitioned into shards, each with its own
+ * buffer and consumer thread, so batching scales with the number of serializer threads. Each consumer
+ * drains its buffer into the current batch and hands the batch to the sender, which owns it from then on,
+ * whenever the {@link FlushPolicy} says so.
+ *
+ * At most <tt>maxPendingBatches</tt> batches are handed to the sender and not yet written. Once that many
+ * are pending the consumers wait, the buffers fill up and producers calling {@link #put(int, byte[])} wait
+ * in turn.
+ *
+ * When points are routed to several {@link WriteTarget}s, each target has shards, buffers and a pending
+ * batch limit of its own. A producer waits for a full target buffer as above, unless the target is
+ * unhealthy or its {@link CircuitBreaker} is not closed. The point is then dropped and counted instead, so
+ * a failing target cannot stall the serializers and with them every other target.
+ */
 @Slf4j
-public class BatchedEventListener implements Runnable {
+public class BatchedEventListener implements SmartLifecycle, PublicMetrics {
+
+	// safety net in case a wake up is missed, the buffer is re-checked at least this often
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	// how long a producer waits before offering again to a full buffer
+	private static final long PUT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	// how long stop() waits for each consumer to hand over what is left in its buffer
+	private static final long STOP_WAIT_MILLIS = 5000;
 
-	private final ResettableCountDownLatch latch;
-	private final List<String> messages;
+	private final Pipeline[] pipelines;
+	private final int shardCount;
 	private final InfluxDBBatchSender sender;
+	private final FlushPolicy policy;
+	private final CounterService counterService;
+
+	private final int maxPendingBatches;
+
+	private volatile boolean running = false;
+
+	/**
+	 * @param shards     the number of shards
+	 * @param bufferSize the buffer capacity of each shard, rounded up to a power of two
+	 */
+	public BatchedEventListener(int shards, int bufferSize, InfluxDBBatchSender sender, FlushPolicy policy,
+								CounterService counterService, int maxPendingBatches) {
+		this(Collections.singletonList(sender.getDefaultTarget()), shards, bufferSize, sender, policy, counterService,
+				maxPendingBatches);
+	}
+
+	/**
+	 * @param targets    the write targets, each gets its own shards
+	 * @param shards     the number of shards per target
+	 * @param bufferSize the buffer capacity of each shard, rounded up to a power of two
+	 */
+	public BatchedEventListener(List<WriteTarget> targets, int shards, int bufferSize, InfluxDBBatchSender sender,
+								FlushPolicy policy, CounterService counterService, int maxPendingBatches) {
+		this.sender = sender;
+		this.policy = policy;
+		this.counterService = counterService;
+		this.maxPendingBatches = Math.max(1, maxPendingBatches);
+		this.shardCount = Math.max(1, shards);
+
+		this.pipelines = new Pipeline[targets.size()];
+		for (int i = 0; i < pipelines.length; ++i) {
+			pipelines[i] = new Pipeline(targets.get(i), bufferSize);
+		}
+	}
+
+	public int getShards() {
+		return shardCount;
+	}
+
+	/**
+	 * @return the number of messages waiting to be batched, over every target
+	 */
+	public int size() {
+		int size = 0;
+		for (Pipeline pipeline : pipelines) {
+			size += pipeline.size();
+		}
+		return size;
+	}
+
+	public int capacity() {
+		int capacity = 0;
+		for (Pipeline pipeline : pipelines) {
+			capacity += pipeline.capacity();
+		}
+		return capacity;
+	}
+
+	/**
+	 * @return the number of batches handed to the sender and not written yet, for the busiest target
+	 */
+	public int getPendingBatches() {
+		int pending = 0;
+		for (Pipeline pipeline : pipelines) {
+			pending = Math.max(pending, maxPendingBatches - pipeline.pendingBatches.availablePermits());
+		}
+		return pending;
+	}
+
+	public int getMaxPendingBatches() {
+		return maxPendingBatches;
+	}
 
-	private final ArrayList<String> msgClone = new ArrayList<>();
+	/**
+	 * Buffer a message, waiting for room while the buffer is full
+	 *
+	 * @param shard   the shard of the message's series
+	 * @param message the encoded point, as UTF-8 bytes
+	 * @return false if the batcher stopped or the calling thread was interrupted before there was room
+	 */
+	public boolean put(int shard, byte[] message) {
+		return put(0, shard, message);
+	}
+
+	/**
+	 * Buffer a message for a target, waiting for room while the buffer is full. With several targets, a
+	 * message for the full buffer of a failing target is dropped instead.
+	 *
+	 * @param target  the index of the message's target
+	 * @param shard   the shard of the message's series
+	 * @param message the encoded point, as UTF-8 bytes
+	 * @return false if the message was dropped, the batcher stopped or the calling thread was interrupted
+	 * before there was room
+	 */
+	public boolean put(int target, int shard, byte[] message) {
+		Pipeline pipeline = pipelines[target];
+		Shard buffer = pipeline.shards[shard];
+
+		while (!buffer.offer(message)) {
+			if (pipelines.length > 1 && isFailing(pipeline.target)) {
+				pipeline.dropped.increment();
+				return false;
+			}
+
+			if (!running || Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+
+			LockSupport.parkNanos(this, PUT_PARK_NANOS);
+		}
+
+		return true;
+	}
+
+	private static boolean isFailing(WriteTarget target) {
+		CircuitBreaker breaker = target.getCircuitBreaker();
+		return !target.isHealthy() || (breaker != null && breaker.getState() != CircuitBreaker.State.closed);
+	}
 
 	@Override
-	public void run() {
-		while (true) {
+	public boolean isAutoStartup() {
+		return true;
+	}
+
+	@Override
+	public void stop(Runnable callback) {
+		stop();
+		callback.run();
+	}
+
+	@Override
+	public void start() {
+		for (Pipeline pipeline : pipelines) {
+			for (Shard shard : pipeline.shards) {
+				String name = "influxdb-batcher";
+				if (pipelines.length > 1) {
+					name += "-" + pipeline.target.getName();
+				}
+				if (shardCount > 1) {
+					name += "-" + shard.index;
+				}
+
+				Thread thread = new Thread(shard, name);
+				thread.setDaemon(true);
+
+				// known before it runs, so stopping right away still stops it
+				shard.consumer = thread;
+				thread.start();
+			}
+		}
+
+		running = true;
+	}
+
+	/**
+	 * Stop the consumers, and wait for them to send whatever is still buffered
+	 */
+	@Override
+	public void stop() {
+		for (Pipeline pipeline : pipelines) {
+			for (Shard shard : pipeline.shards) {
+				Thread consumer = shard.consumer;
+				if (consumer != null) {
+					consumer.interrupt();
+				}
+			}
+		}
+
+		running = false;
+
+		for (Pipeline pipeline : pipelines) {
+			for (Shard shard : pipeline.shards) {
+				Thread consumer = shard.consumer;
+				if (consumer == null) {
+					continue;
+				}
+
+				try {
+					consumer.join(STOP_WAIT_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+
+				if (consumer.isAlive()) {
+					log.warn("Batcher {} did not finish sending its buffer", consumer.getName());
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public int getPhase() {
+		// the batcher has to be draining before the FirehoseReader starts producing
+		return -50;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		int size = 0;
+		int capacity = 0;
+		int pending = 0;
+
+		List<Metric<?>> metrics = new ArrayList<>(3 + (pipelines.length > 1 ? pipelines.length * 3 : 0));
+		for (Pipeline pipeline : pipelines) {
+			int pipelineSize = pipeline.size();
+			int pipelinePending = maxPendingBatches - pipeline.pendingBatches.availablePermits();
+
+			size += pipelineSize;
+			capacity += pipeline.capacity();
+			pending += pipelinePending;
+
+			if (pipelines.length > 1) {
+				String prefix = "targets." + pipeline.target.getName() + ".";
+				metrics.add(new Metric<>(prefix + "buffer.size", pipelineSize));
+				metrics.add(new Metric<>(prefix + "batches.pending", pipelinePending));
+				metrics.add(new Metric<>(prefix + "dropped", pipeline.dropped.sum()));
+			}
+		}
+
+		metrics.add(new Metric<>("buffer.size", size));
+		metrics.add(new Metric<>("buffer.capacity", capacity));
+		metrics.add(new Metric<>("batches.pending", pending));
+
+		return metrics;
+	}
+
+	/**
+	 * The shards of one target, with its own limit of pending batches
+	 */
+	private class Pipeline {
+
+		private final WriteTarget target;
+
+		private final Shard[] shards;
+
+		private final Semaphore pendingBatches = new Semaphore(maxPendingBatches);
+
+		private final LongAdder dropped = new LongAdder();
+
+		Pipeline(WriteTarget target, int bufferSize) {
+			this.target = target;
+
+			this.shards = new Shard[shardCount];
+			for (int i = 0; i < shards.length; ++i) {
+				shards[i] = new Shard(this, i, new MpscRingBuffer<>(Math.max(bufferSize, policy.getMaxPoints())));
+			}
+		}
+
+		int size() {
+			int size = 0;
+			for (Shard shard : shards) {
+				size += shard.messages.size();
+			}
+			return size;
+		}
+
+		int capacity() {
+			int capacity = 0;
+			for (Shard shard : shards) {
+				capacity += shard.messages.capacity();
+			}
+			return capacity;
+		}
+
+		/**
+		 * Wait until fewer than maxPendingBatches batches are pending. When interrupted, which means shutting
+		 * down, the batch is sent without waiting.
+		 */
+		boolean acquirePermit() {
 			try {
-				latch.await();
+				pendingBatches.acquire();
+				return true;
 			} catch (InterruptedException e) {
-				break;
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * One buffer and the single consumer that batches it
+	 */
+	private class Shard implements Runnable {
+
+		private final Pipeline pipeline;
+
+		private final int index;
+
+		private final MpscRingBuffer<byte[]> messages;
+
+		private final AtomicBoolean waiting = new AtomicBoolean(false);
+
+		// how many buffered messages are worth waking the consumer for
+		private volatile int wakeThreshold = 1;
+
+		private volatile Thread consumer;
+
+		private List<byte[]> batch;
+		private long batchBytes;
+		private long batchStarted;
+
+		Shard(Pipeline pipeline, int index, MpscRingBuffer<byte[]> messages) {
+			this.pipeline = pipeline;
+			this.index = index;
+			this.messages = messages;
+			this.batch = new ArrayList<>(policy.getTargetPoints());
+		}
+
+		boolean offer(byte[] message) {
+			if (!messages.offer(message)) {
+				return false;
+			}
+
+			if (waiting.get() && messages.size() >= wakeThreshold && waiting.compareAndSet(true, false)) {
+				LockSupport.unpark(consumer);
 			}
 
-			log.debug("Batch size reached, sending to target");
+			return true;
+		}
+
+		@Override
+		public void run() {
+			consumer = Thread.currentThread();
+
+			while (!Thread.currentThread().isInterrupted()) {
+				byte[] message;
+				while ((message = messages.poll()) != null) {
+					add(message);
+				}
+
+				long remaining = policy.remainingLinger(batch.size(), batchStarted, System.nanoTime());
+				if (remaining == 0) {
+					flush(FlushPolicy.Trigger.linger);
+					continue;
+				}
+
+				// an empty batch starts its linger clock with the first message, so wake up for that one
+				int threshold = batch.isEmpty() ? 1 : Math.max(1, policy.getTargetPoints() - batch.size());
+				wakeThreshold = threshold;
+				waiting.set(true);
+
+				// re-check after announcing, an offer may have come in between
+				if (messages.size() < threshold) {
+					LockSupport.parkNanos(this, Math.min(remaining, MAX_PARK_NANOS));
+				}
+
+				waiting.set(false);
+			}
 
-			msgClone.clear();
-			synchronized (this) {
-				/*
-				 there is a situation where a message could come in in the miniscule amount of time it takes to copy
-				 the messages into the clone, so synchronize on that.
-				  */
-				msgClone.addAll(messages);
-				messages.clear();
+			// what producers left in the buffer, full batches are sent as they fill
+			byte[] message;
+			while ((message = messages.poll()) != null) {
+				add(message);
+			}
+
+			if (!batch.isEmpty()) {
+				flush(FlushPolicy.Trigger.shutdown);
+			}
+		}
+
+		private void add(byte[] message) {
+			// the line plus its newline
+			long size = message.length + 1;
+
+			if (!policy.fits(batchBytes, size)) {
+				flush(FlushPolicy.Trigger.bytes);
+			}
+
+			if (batch.isEmpty()) {
+				batchStarted = System.nanoTime();
+			}
+
+			batch.add(message);
+			batchBytes += size;
+
+			if (policy.isFull(batch.size())) {
+				flush(FlushPolicy.Trigger.count);
+			}
+		}
+
+		private void flush(FlushPolicy.Trigger trigger) {
+			log.debug("Sending batch of {} messages, {} bytes ({} reached)", batch.size(), batchBytes, trigger);
+			counterService.increment("batches.flushed." + trigger.name());
+
+			boolean permit = pipeline.acquirePermit();
+			try {
+				sender.sendBatch(pipeline.target, batch).whenComplete((result, error) -> {
+					if (permit) {
+						pipeline.pendingBatches.release();
+					}
+				});
+			} catch (RuntimeException e) {
+				log.error("Failed to hand a batch of {} messages to the sender: {}", batch.size(), e.getMessage());
+				if (permit) {
+					pipeline.pendingBatches.release();
+				}
 			}
-			sender.sendBatch(msgClone);
 
-			latch.reset();
+			batch = new ArrayList<>(policy.getTargetPoints());
+			batchBytes = 0;
 		}
 	}
 }
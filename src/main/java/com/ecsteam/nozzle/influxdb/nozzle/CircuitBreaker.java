@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops the {@link InfluxDBBatchSender} from writing to a {@link WriteTarget} that keeps failing, so
+ * batches are spooled or dropped at once instead of holding a sender thread through every retry.
+ *
+ * <ul>
+ * <li><b>closed</b>: requests go through. After <tt>failureThreshold</tt> failed requests in a row, a
+ * connection error or a 5xx response, the breaker opens. Until then, any failure since the last success
+ * makes it {@link #isDegraded() degraded}.</li>
+ * <li><b>open</b>: no request goes through for <tt>openMillis</tt> ms.</li>
+ * <li><b>halfOpen</b>: the next request is let through as a probe, and the others are still refused. The
+ * breaker closes if the probe succeeds and opens again if it fails.</li>
+ * </ul>
+ *
+ * A breaker with a <tt>failureThreshold</tt> of 0 is off: it never opens and is never degraded.
+ *
+ * The state is read for every event by the {@link LoadShedder}, so reads take no lock, only the
+ * transitions do.
+ */
+@Slf4j
+public class CircuitBreaker {
+
+	public enum State {
+		closed, open, halfOpen
+	}
+
+	private final String name;
+	private final int failureThreshold;
+	private final long openMillis;
+
+	// written under the lock
+	private volatile State state = State.closed;
+	private volatile int failures;
+	private long openedAt;
+	private long probeStarted;
+
+	private final LongAdder opened = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * @param name             used in the logs
+	 * @param failureThreshold the failures in a row that open the breaker, 0 never opens it
+	 * @param openMillis       how long the breaker stays open before a probe
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * @return true if a request may be made, false if it should be spooled or dropped
+	 */
+	public boolean allowRequest() {
+		return state == State.closed || allowRequest(System.currentTimeMillis());
+	}
+
+	synchronized boolean allowRequest(long now) {
+		switch (state) {
+			case closed:
+				return true;
+			case open:
+				if (now - openedAt < openMillis) {
+					break;
+				}
+
+				log.info("Probing {} after {} ms", name, now - openedAt);
+				state = State.halfOpen;
+				probeStarted = now;
+				return true;
+			case halfOpen:
+				// a probe that never reported back does not hold the breaker forever
+				if (now - probeStarted >= openMillis) {
+					probeStarted = now;
+					return true;
+				}
+				break;
+		}
+
+		rejected.increment();
+		return false;
+	}
+
+	public void recordSuccess() {
+		// the common case, nothing to change
+		if (state == State.closed && failures == 0) {
+			return;
+		}
+
+		synchronized (this) {
+			if (state != State.closed) {
+				log.info("Closing the circuit breaker of {}, the probe succeeded", name);
+				state = State.closed;
+			}
+
+			failures = 0;
+		}
+	}
+
+	public void recordFailure() {
+		recordFailure(System.currentTimeMillis());
+	}
+
+	synchronized void recordFailure(long now) {
+		++failures;
+
+		if (state == State.halfOpen || (state == State.closed && failureThreshold > 0 && failures >= failureThreshold)) {
+			log.warn("Opening the circuit breaker of {} for {} ms, after {} failures", name, openMillis, failures);
+			state = State.open;
+			openedAt = now;
+			opened.increment();
+		}
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return true if the breaker is on, and open or probing or the last request failed
+	 */
+	public boolean isDegraded() {
+		return failureThreshold > 0 && (state != State.closed || failures > 0);
+	}
+
+	/**
+	 * @return how many times the breaker opened
+	 */
+	public long getOpened() {
+		return opened.sum();
+	}
+
+	/**
+	 * @return how many requests were refused while the breaker was open
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Spreads series over a list of InfluxDB endpoints, so each series always lands on the same endpoint.
+ *
+ * Each endpoint is placed at {@link #VIRTUAL_NODES} points of a 64 bit ring, hashed from its URL, and a
+ * series goes to the first endpoint point at or after the hash of its series key. The hashes depend only
+ * on the bytes, never on the JVM, so every nozzle instance and every restart agrees. Adding an endpoint
+ * moves only the series that now fall on its points, about 1/N of them, and removing one moves only its
+ * own series.
+ */
+public class ConsistentHashRing {
+
+	/**
+	 * Points per endpoint, enough to keep the share of each endpoint within a few percent
+	 */
+	static final int VIRTUAL_NODES = 160;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int endpoints;
+
+	// sorted ring positions, and the endpoint index at each
+	private final long[] positions;
+	private final int[] owners;
+
+	/**
+	 * @param endpoints the endpoint URLs, their order gives the shard indexes but not their positions
+	 */
+	public ConsistentHashRing(List<String> endpoints) {
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("At least one endpoint is required");
+		}
+
+		this.endpoints = endpoints.size();
+
+		long[] points = new long[endpoints.size() * VIRTUAL_NODES];
+		for (int i = 0; i < endpoints.size(); ++i) {
+			byte[] name = endpoints.get(i).getBytes(StandardCharsets.UTF_8);
+			long h = hash(name, name.length);
+			for (int v = 0; v < VIRTUAL_NODES; ++v) {
+				points[i * VIRTUAL_NODES + v] = mix(h + v * 0x9e3779b97f4a7c15L);
+			}
+		}
+
+		// sort the positions with their owners, ties go to the lower index
+		Integer[] order = new Integer[points.length];
+		for (int i = 0; i < order.length; ++i) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> points[a] != points[b] ? Long.compare(points[a], points[b]) : Integer.compare(a, b));
+
+		this.positions = new long[points.length];
+		this.owners = new int[points.length];
+		for (int i = 0; i < order.length; ++i) {
+			positions[i] = points[order[i]];
+			owners[i] = order[i] / VIRTUAL_NODES;
+		}
+	}
+
+	public int size() {
+		return endpoints;
+	}
+
+	/**
+	 * @param series the buffer holding the series key
+	 * @param length the length of the series key
+	 * @return the index of the series' endpoint
+	 */
+	public int endpointOf(byte[] series, int length) {
+		if (endpoints == 1) {
+			return 0;
+		}
+
+		int i = Arrays.binarySearch(positions, hash(series, length));
+		if (i < 0) {
+			i = -i - 1;
+		}
+
+		// past the last point wraps around to the first
+		return owners[i < positions.length ? i : 0];
+	}
+
+	/**
+	 * FNV-1a over the bytes, then the MurmurHash3 finalizer so nearby keys spread over the whole ring
+	 */
+	static long hash(byte[] bytes, int length) {
+		long h = FNV_OFFSET;
+		for (int i = 0; i < length; ++i) {
+			h ^= bytes[i] & 0xff;
+			h *= FNV_PRIME;
+		}
+
+		return mix(h);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.lineprotocol.LineProtocolEncoder;
+import org.cloudfoundry.doppler.CounterEvent;
+
+/**
+ * Coalesces the CounterEvents of each counter to one point per window, with the latest <tt>total</tt> and
+ * the sum of the <tt>delta</tt>s, the same fields as the raw points, so existing queries keep working.
+ *
+ * The events of a series are serialized in order by a single shard, the latest event seen is the latest
+ * emitted. Each counter holds a handful of primitives, and the number of counters is bounded.
+ */
+public class CounterCoalescer extends SeriesAggregator<CounterCoalescer.Counter> {
+
+	/**
+	 * @param window        the window length in millis, 0 writes every event
+	 * @param maxSeries     the max number of counters coalesced at once
+	 * @param batcher       where the coalesced points are written
+	 * @param integerFields whether integer fields are written as InfluxDB integers
+	 */
+	public CounterCoalescer(long window, int maxSeries, BatchedEventListener batcher, boolean integerFields) {
+		super("coalesce", window, maxSeries, batcher, integerFields);
+	}
+
+	/**
+	 * Record a CounterEvent
+	 *
+	 * @param prefix the encoder holding the series prefix
+	 * @param target the index of the series' write target
+	 * @param event  the event
+	 * @return false if too many counters are tracked and the event should be written as is
+	 */
+	public boolean addCounterEvent(LineProtocolEncoder prefix, int target, CounterEvent event) {
+		Counter counter = lock(prefix, 0, target);
+		if (counter == null) {
+			return false;
+		}
+
+		try {
+			counter.add(event.getTotal(), event.getDelta());
+		} finally {
+			unlock(counter);
+		}
+
+		return true;
+	}
+
+	@Override
+	protected Counter newSeries(long id) {
+		return new Counter();
+	}
+
+	@Override
+	protected void writeFields(Counter counter, LineProtocolEncoder encoder) {
+		if (counter.hasTotal) {
+			encoder.field("total", counter.total);
+		}
+
+		if (counter.hasDelta) {
+			encoder.field("delta", counter.delta);
+		}
+
+		counter.reset();
+	}
+
+	/**
+	 * The latest total and summed delta of a counter over the current window
+	 */
+	static final class Counter extends SeriesAggregator.Series {
+
+		private long total;
+		private long delta;
+
+		private boolean hasTotal;
+		private boolean hasDelta;
+
+		private int events;
+
+		void add(Long total, Long delta) {
+			if (total != null) {
+				this.total = total;
+				this.hasTotal = true;
+			}
+
+			if (delta != null) {
+				this.delta += delta;
+				this.hasDelta = true;
+			}
+
+			++events;
+		}
+
+		void reset() {
+			delta = 0;
+			hasTotal = false;
+			hasDelta = false;
+			events = 0;
+		}
+
+		@Override
+		protected boolean isEmpty() {
+			return events == 0;
+		}
+	}
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.ContainerMetric;
+import org.cloudfoundry.doppler.CounterEvent;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.HttpStartStop;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drops envelopes already seen within the last <tt>window</tt> millis, such as the ones Doppler sends
+ * again after a reconnect or a rebalance.
+ *
+ * An envelope is identified by a 64 bit fingerprint of its origin, source, timestamp and payload. The
+ * fingerprints are kept in two Bloom filters, each sized for <tt>expectedEvents</tt> per window at a
+ * false positive rate of <tt>falsePositiveRate</tt>. Fingerprints are added to the current filter and
+ * looked up in both, and every window the older filter is cleared and becomes the current one, so an
+ * envelope is remembered for one to two windows in a fixed amount of memory.
+ *
+ * A false positive drops an envelope that was not a duplicate. The expected rate, from how full the
+ * filters are, is published as <tt>dedup.fpp</tt>.
+ */
+@Slf4j
+public class EnvelopeDeduplicator implements PublicMetrics {
+
+	private final long window;
+
+	private final int hashes;
+
+	private final long bits;
+
+	private final Filter[] filters = new Filter[2];
+
+	private volatile int current;
+
+	private volatile long rotateAt;
+
+	private final LongAdder checked = new LongAdder();
+	private final LongAdder duplicates = new LongAdder();
+
+	/**
+	 * @param window            how long in millis an envelope is remembered, at least, 0 disables deduplication
+	 * @param expectedEvents    the number of envelopes expected per window
+	 * @param falsePositiveRate the rate of unique envelopes wrongly dropped at the expected number of envelopes
+	 */
+	public EnvelopeDeduplicator(long window, long expectedEvents, double falsePositiveRate) {
+		this.window = window;
+
+		if (window > 0) {
+			long n = Math.max(1, expectedEvents);
+			double p = Math.min(0.5, Math.max(1e-9, falsePositiveRate));
+
+			// the usual Bloom filter sizing, rounded up to whole words
+			long m = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+			this.bits = Math.max(64, (m + 63) & ~63L);
+			this.hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+
+			log.info("Deduplicating envelopes over {} ms windows, {} KiB per filter, {} hashes", window,
+					bits / 8 / 1024, hashes);
+		} else {
+			this.bits = 64;
+			this.hashes = 1;
+		}
+
+		filters[0] = new Filter(bits);
+		filters[1] = new Filter(bits);
+		rotateAt = System.currentTimeMillis() + window;
+	}
+
+	public boolean isEnabled() {
+		return window > 0;
+	}
+
+	/**
+	 * Remember the envelope, and tell if it was seen before
+	 *
+	 * @param envelope The event from the Firehose
+	 * @return true if the envelope is, most likely, a duplicate and should be dropped
+	 */
+	public boolean isDuplicate(Envelope envelope) {
+		return isDuplicate(fingerprint(envelope), System.currentTimeMillis());
+	}
+
+	boolean isDuplicate(long fingerprint, long now) {
+		if (now >= rotateAt) {
+			rotate(now);
+		}
+
+		checked.increment();
+
+		// double hashing, the two halves of the mixed fingerprint give every probe
+		long h1 = mix(fingerprint);
+		long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+
+		Filter newer = filters[current];
+		Filter older = filters[current ^ 1];
+
+		boolean inNewer = true;
+		boolean inOlder = true;
+
+		long h = h1;
+		for (int i = 0; i < hashes; ++i) {
+			long bit = Math.floorMod(h, bits);
+
+			inNewer &= newer.set(bit);
+			inOlder = inOlder && older.get(bit);
+
+			h += h2;
+		}
+
+		if (inNewer || inOlder) {
+			duplicates.increment();
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Clear the older filter and make it the current one
+	 */
+	private synchronized void rotate(long now) {
+		if (now < rotateAt) {
+			return;
+		}
+
+		// only read by the serializer threads, the current filter is the one written
+		int older = current ^ 1;
+		filters[older].clear();
+
+		// nothing was checked for a whole window, what the current filter holds is too old as well
+		if (now - rotateAt >= window) {
+			filters[current].clear();
+		}
+
+		current = older;
+
+		rotateAt = now + window;
+	}
+
+	/**
+	 * @return the expected rate of unique envelopes wrongly taken as duplicates, given how full the filters are
+	 */
+	public double falsePositiveRate() {
+		double newer = Math.pow((double) filters[current].count() / bits, hashes);
+		double older = Math.pow((double) filters[current ^ 1].count() / bits, hashes);
+
+		return 1 - (1 - newer) * (1 - older);
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>(3);
+		metrics.add(new Metric<>("dedup.checked", checked.sum()));
+		metrics.add(new Metric<>("dedup.hits", duplicates.sum()));
+		metrics.add(new Metric<>("dedup.fpp", falsePositiveRate()));
+
+		return metrics;
+	}
+
+	/**
+	 * @return a hash of everything that makes the envelope unique, the tags aside
+	 */
+	static long fingerprint(Envelope envelope) {
+		long h = envelope.getEventType().ordinal();
+		h = hash(h, envelope.getOrigin());
+		h = hash(h, envelope.getDeployment());
+		h = hash(h, envelope.getJob());
+		h = hash(h, envelope.getIndex());
+		h = hash(h, envelope.getIp());
+		h = hash(h, envelope.getTimestamp());
+
+		switch (envelope.getEventType()) {
+			case VALUE_METRIC:
+				ValueMetric valueMetric = envelope.getValueMetric();
+				if (valueMetric != null) {
+					h = hash(h, valueMetric.getName());
+					h = hash(h, valueMetric.value());
+					h = hash(h, valueMetric.getUnit());
+				}
+				break;
+			case COUNTER_EVENT:
+				CounterEvent counterEvent = envelope.getCounterEvent();
+				if (counterEvent != null) {
+					h = hash(h, counterEvent.getName());
+					h = hash(h, counterEvent.getTotal());
+					h = hash(h, counterEvent.getDelta());
+				}
+				break;
+			case CONTAINER_METRIC:
+				ContainerMetric containerMetric = envelope.getContainerMetric();
+				if (containerMetric != null) {
+					h = hash(h, containerMetric.getApplicationId());
+					h = hash(h, containerMetric.getInstanceIndex());
+					h = hash(h, containerMetric.getCpuPercentage());
+					h = hash(h, containerMetric.getMemoryBytes());
+					h = hash(h, containerMetric.getDiskBytes());
+				}
+				break;
+			case HTTP_START_STOP:
+				HttpStartStop httpStartStop = envelope.getHttpStartStop();
+				if (httpStartStop != null) {
+					h = hash(h, httpStartStop.getRequestId());
+					h = hash(h, httpStartStop.getPeerType());
+					h = hash(h, httpStartStop.getStartTimestamp());
+					h = hash(h, httpStartStop.getStopTimestamp());
+					h = hash(h, httpStartStop.getStatusCode());
+					h = hash(h, httpStartStop.getApplicationId());
+					h = hash(h, httpStartStop.getInstanceId());
+				}
+				break;
+		}
+
+		return h;
+	}
+
+	private static long hash(long h, String value) {
+		if (value == null) {
+			return h * 31;
+		}
+
+		for (int i = 0; i < value.length(); ++i) {
+			h = h * 31 + value.charAt(i);
+		}
+
+		return mix(h);
+	}
+
+	private static long hash(long h, Long value) {
+		return mix(h * 31 + (value != null ? value : 0x5bd1e995L));
+	}
+
+	private static long hash(long h, Integer value) {
+		return mix(h * 31 + (value != null ? value : 0x5bd1e995L));
+	}
+
+	private static long hash(long h, Double value) {
+		return mix(h * 31 + (value != null ? Double.doubleToLongBits(value) : 0x5bd1e995L));
+	}
+
+	private static long hash(long h, Object value) {
+		return mix(h * 31 + Objects.hashCode(value));
+	}
+
+	/**
+	 * The MurmurHash3 finalizer, every input bit affects every output bit
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+
+	/**
+	 * A bit set shared by the serializer threads
+	 */
+	private static final class Filter {
+
+		private final AtomicLongArray words;
+
+		private final LongAdder count = new LongAdder();
+
+		Filter(long bits) {
+			this.words = new AtomicLongArray((int) (bits >>> 6));
+		}
+
+		/**
+		 * @return true if the bit was already set
+		 */
+		boolean set(long bit) {
+			int index = (int) (bit >>> 6);
+			long mask = 1L << bit;
+
+			for (;;) {
+				long word = words.get(index);
+				if ((word & mask) != 0) {
+					return true;
+				}
+
+				if (words.compareAndSet(index, word, word | mask)) {
+					count.increment();
+					return false;
+				}
+			}
+		}
+
+		boolean get(long bit) {
+			return (words.get((int) (bit >>> 6)) & (1L << bit)) != 0;
+		}
+
+		long count() {
+			return count.sum();
+		}
+
+		void clear() {
+			for (int i = 0; i < words.length(); ++i) {
+				words.set(i, 0);
+			}
+			count.reset();
+		}
+	}
+}
@@ -17,28 +17,26 @@
 package com.ecsteam.nozzle.influxdb.nozzle;
 
 import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
-import com.ecsteam.nozzle.influxdb.destination.MetricsDestination;
+import com.ecsteam.nozzle.influxdb.foundation.AppData;
 import com.ecsteam.nozzle.influxdb.foundation.AppDataCache;
+import com.ecsteam.nozzle.influxdb.lineprotocol.LineProtocolEncoder;
 import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.doppler.ContainerMetric;
 import org.cloudfoundry.doppler.CounterEvent;
 import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
 import org.cloudfoundry.doppler.HttpStartStop;
 import org.cloudfoundry.doppler.ValueMetric;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.actuate.metrics.CounterService;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Objects;
 
 /**
  * Captures messages from the Cloud Foundry Firehose and batches them to be sent to InfluxDB
@@ -47,28 +45,97 @@ import java.util.stream.Collectors;
 @Slf4j
 public class FirehoseEventSerializer {
 
-	private final ResettableCountDownLatch latch;
-	private final List<String> messages;
+	private static final ThreadLocal<SeriesPrefixCache.Key> SERIES_KEYS = ThreadLocal.withInitial(SeriesPrefixCache.Key::new);
+
+	private final BatchedEventListener batcher;
 	private final List<String> tagFields;
 	private final AppDataCache appDataCache;
+	private final SeriesPrefixCache seriesPrefixCache;
 	private final CounterService counterService;
 
+	private final ThreadLocal<LineProtocolEncoder> encoders;
+
+	private final Map<EventType, String> receivedCounterNames = new EnumMap<>(EventType.class);
+	private final Map<EventType, String> droppedCounterNames = new EnumMap<>(EventType.class);
+
+	// resolved once, tagFields is checked for every event otherwise
+	private final boolean tagEnvelopeTags;
+	private final boolean tagIp;
+	private final boolean tagDeployment;
+	private final boolean tagJob;
+	private final boolean tagIndex;
+
+	private final int shards;
+
 	private String foundation;
 
+	private GaugeDownsampler downsampler;
+	private boolean downsampleValueMetrics;
+	private boolean downsampleContainerMetrics;
+
+	private HttpLatencyHistograms latencyHistograms;
+
+	private CounterCoalescer counterCoalescer;
+
+	private WriteRouter router;
+
+	private LoadShedder loadShedder;
+
 	@Autowired
-	public FirehoseEventSerializer(NozzleProperties properties, MetricsDestination destination, InfluxDBBatchSender sender, AppDataCache appDataCache, CounterService counterService) {
+	public FirehoseEventSerializer(NozzleProperties properties, BatchedEventListener batcher, AppDataCache appDataCache,
+								   SeriesPrefixCache seriesPrefixCache, CounterService counterService) {
 		log.info("Initializing DB Writer with batch size {}", properties.getBatchSize());
-		this.messages = Collections.synchronizedList(new ArrayList<>());
-		this.latch = new ResettableCountDownLatch(properties.getBatchSize());
+		this.batcher = batcher;
+		this.shards = batcher.getShards();
 		this.tagFields = properties.getTagFields();
 
+		final boolean integerFields = properties.isIntegerFields();
+		this.encoders = ThreadLocal.withInitial(() -> new LineProtocolEncoder(integerFields));
+
 		this.appDataCache = appDataCache;
+		this.seriesPrefixCache = seriesPrefixCache;
 
 		this.foundation = properties.getFoundation();
 
 		this.counterService = counterService;
 
-		new Thread(new BatchedEventListener(latch, messages, sender)).start();
+		for (EventType eventType : EventType.values()) {
+			receivedCounterNames.put(eventType, "events.received." + eventType.toString());
+			droppedCounterNames.put(eventType, "events.dropped." + eventType.toString());
+		}
+
+		this.tagEnvelopeTags = isTaggableField("tags");
+		this.tagIp = isTaggableField("ip");
+		this.tagDeployment = isTaggableField("deployment");
+		this.tagJob = isTaggableField("job");
+		this.tagIndex = isTaggableField("index");
+	}
+
+	@Autowired(required = false)
+	public void setDownsampler(GaugeDownsampler downsampler) {
+		this.downsampler = downsampler;
+		this.downsampleValueMetrics = downsampler != null && downsampler.downsamples(EventType.VALUE_METRIC);
+		this.downsampleContainerMetrics = downsampler != null && downsampler.downsamples(EventType.CONTAINER_METRIC);
+	}
+
+	@Autowired(required = false)
+	public void setLatencyHistograms(HttpLatencyHistograms latencyHistograms) {
+		this.latencyHistograms = latencyHistograms != null && latencyHistograms.isEnabled() ? latencyHistograms : null;
+	}
+
+	@Autowired(required = false)
+	public void setCounterCoalescer(CounterCoalescer counterCoalescer) {
+		this.counterCoalescer = counterCoalescer != null && counterCoalescer.isEnabled() ? counterCoalescer : null;
+	}
+
+	@Autowired(required = false)
+	public void setRouter(WriteRouter router) {
+		this.router = router;
+	}
+
+	@Autowired(required = false)
+	public void setLoadShedder(LoadShedder loadShedder) {
+		this.loadShedder = loadShedder != null && loadShedder.isEnabled() ? loadShedder : null;
 	}
 
 	/**
@@ -76,203 +143,313 @@ public class FirehoseEventSerializer {
 	 *
 	 * <tt>message[,tag=value]* value timestamp</tt>
 	 *
-	 * Add each message String to a batch list and count down a latch. When the latch reaches 0,
-	 * it will write to InfluxDB and reset.
+	 * Add each message to the buffer, waiting for room while it is full so that backpressure reaches the
+	 * {@link FirehoseReader}. The batcher thread drains the buffer and writes the batches to InfluxDB.
 	 *
 	 * @param envelope The event from the Firehose
+	 * @param shard    the shard of the envelope's series, see {@link #shardOf(Envelope)}
 	 */
-	@Async
-	void writeMessage(Envelope envelope) {
-		final StringBuilder messageBuilder = new StringBuilder();
+	void writeMessage(Envelope envelope, int shard) {
+		LineProtocolEncoder encoder = encode(envelope);
+		if (encoder == null) {
+			return;
+		}
+
+		int target = route(envelope, encoder);
+		if (loadShedder != null && loadShedder.shed(target, envelope.getEventType())) {
+			return;
+		}
+
+		if (!batcher.put(target, shard, encoder.toByteArray())) {
+			counterService.increment(droppedCounterNames.get(envelope.getEventType()));
+			log.debug("Batcher is stopped or full, dropping {} event", envelope.getEventType());
+		}
+	}
+
+	/**
+	 * @param encoder the encoder holding the envelope's series, and possibly its fields
+	 * @return the index of the envelope's write target, see {@link WriteRouter#route(Envelope, byte[], int)}
+	 */
+	private int route(Envelope envelope, LineProtocolEncoder encoder) {
+		if (router == null) {
+			return 0;
+		}
+
+		// before the first field, the encoder holds nothing but the series
+		int length = encoder.hasFields() ? encoder.seriesLength() : encoder.length();
+		return router.route(envelope, encoder.buffer(), length);
+	}
+
+	/**
+	 * Pick the pipeline shard of an envelope from the identity of its series, so that every point of a
+	 * series is serialized and batched in order by the same shard
+	 *
+	 * @param envelope The event from the Firehose
+	 * @return the shard, between 0 and the number of shards
+	 */
+	int shardOf(Envelope envelope) {
+		if (shards == 1) {
+			return 0;
+		}
+
+		int h = envelope.getEventType().ordinal();
+		h = 31 * h + Objects.hashCode(envelope.getOrigin());
+		h = 31 * h + Objects.hashCode(envelope.getJob());
+		h = 31 * h + Objects.hashCode(envelope.getIndex());
 
 		switch (envelope.getEventType()) {
 			case VALUE_METRIC:
-				writeValueMetric(messageBuilder, envelope);
+				h = 31 * h + (envelope.getValueMetric() != null ? Objects.hashCode(envelope.getValueMetric().getName()) : 0);
 				break;
 			case COUNTER_EVENT:
-				writeCounterEvent(messageBuilder, envelope);
+				h = 31 * h + (envelope.getCounterEvent() != null ? Objects.hashCode(envelope.getCounterEvent().getName()) : 0);
 				break;
 			case CONTAINER_METRIC:
-				writeContainerMetric(messageBuilder, envelope);
+				h = 31 * h + (envelope.getContainerMetric() != null ? Objects.hashCode(envelope.getContainerMetric().getApplicationId()) : 0);
 				break;
 			case HTTP_START_STOP:
-				writeHttpStartStop(messageBuilder, envelope);
+				h = 31 * h + (envelope.getHttpStartStop() != null ? Objects.hashCode(envelope.getHttpStartStop().getApplicationId()) : 0);
 				break;
 		}
+
+		return Math.floorMod(h ^ (h >>> 16), shards);
 	}
 
-	private void writeCommonSeriesData(StringBuilder messageBuilder, Envelope envelope,
-									   String metricName, Map<String, String> tags) {
-		this.counterService.increment("events.received." + envelope.getEventType().toString());
+	/**
+	 * Encode an envelope into this thread's encoder
+	 *
+	 * @param envelope The event from the Firehose
+	 * @return the encoder holding the point, or null if the envelope did not produce one, or was folded into
+	 * an aggregate that is written later
+	 */
+	LineProtocolEncoder encode(Envelope envelope) {
+		final LineProtocolEncoder encoder = encoders.get().reset();
 
-		messageBuilder.append(envelope.getOrigin()).append('.').append(metricName);
-		tags.forEach((k, v) -> messageBuilder.append(",").append(k).append("=").append(v));
+		boolean written = false;
+		switch (envelope.getEventType()) {
+			case VALUE_METRIC:
+				written = writeValueMetric(encoder, envelope);
+				break;
+			case COUNTER_EVENT:
+				written = writeCounterEvent(encoder, envelope);
+				break;
+			case CONTAINER_METRIC:
+				written = writeContainerMetric(encoder, envelope);
+				break;
+			case HTTP_START_STOP:
+				written = writeHttpStartStop(encoder, envelope);
+				break;
+		}
+
+		if (!written) {
+			return null;
+		}
+
+		if (!encoder.hasFields()) {
+			log.debug("Dropping {} event from {} without any fields", envelope.getEventType(), envelope.getOrigin());
+			return null;
+		}
+
+		return encoder.timestamp(envelope.getTimestamp());
 	}
 
-	private void finishMessage(StringBuilder messageBuilder, Envelope envelope) {
-		messageBuilder.append(' ').append(envelope.getTimestamp());
+	/**
+	 * Count the event, and write the measurement and tags of its series
+	 */
+	private void writeCommonSeriesData(LineProtocolEncoder encoder, Envelope envelope, String metricName,
+									   String eventType, String applicationId) {
+		this.counterService.increment(receivedCounterNames.get(envelope.getEventType()));
 
-		messages.add(messageBuilder.toString());
-		latch.countDown();
+		writeSeriesPrefix(encoder, envelope, metricName, eventType, applicationId);
+	}
+
+	/**
+	 * Write the measurement and tags of the series, from the prefix cache when this series has been seen before
+	 */
+	private void writeSeriesPrefix(LineProtocolEncoder encoder, Envelope envelope, String metricName,
+								   String eventType, String applicationId) {
+		SeriesPrefixCache.Key key = SERIES_KEYS.get().set(envelope.getEventType(), envelope.getOrigin(), metricName,
+				tagDeployment ? envelope.getDeployment() : null,
+				tagJob ? envelope.getJob() : null,
+				tagIndex ? envelope.getIndex() : null,
+				tagIp ? envelope.getIp() : null,
+				tagEnvelopeTags ? envelope.getTags() : null,
+				applicationId);
+
+		long generation = seriesPrefixCache.generation();
+		byte[] prefix = seriesPrefixCache.get(key);
+		if (prefix != null) {
+			encoder.prefix(prefix);
+			return;
+		}
+
+		encoder.measurement(envelope.getOrigin(), metricName);
+		writeTags(encoder, envelope);
+		encoder.tag("eventType", eventType);
 
-		messageBuilder.delete(0, messageBuilder.length());
+		if (applicationId != null) {
+			writeAppData(encoder, applicationId);
+		}
+
+		seriesPrefixCache.put(key, encoder.toByteArray(), generation);
 	}
 
-	private void writeContainerMetric(StringBuilder messageBuilder, Envelope envelope) {
+	private boolean writeContainerMetric(LineProtocolEncoder encoder, Envelope envelope) {
 		ContainerMetric metric = envelope.getContainerMetric();
 
 		if (metric != null) {
-			Map<String, String> tags = getTags(envelope);
-			tags.put("eventType", "ContainerMetric");
-
-			if (metric.getApplicationId() != null) {
-				tags.putAll(appDataCache.getAppData(metric.getApplicationId()));
-			}
+			writeCommonSeriesData(encoder, envelope, "ContainerMetric", "ContainerMetric", metric.getApplicationId());
 
-			writeCommonSeriesData(messageBuilder, envelope, "ContainerMetric", tags);
+			if (downsampleContainerMetrics) {
+				// part of the series whether the downsampler has room for it or not, so both are routed alike
+				if (metric.getInstanceIndex() != null) {
+					encoder.tag(GaugeDownsampler.INSTANCE_TAG, metric.getInstanceIndex().toString());
+				}
 
-			Map<String, Number> values = new LinkedHashMap<>();
-			values.put("instanceIndex", metric.getInstanceIndex());
-			values.put("cpuPercentage", metric.getCpuPercentage());
-			values.put("diskBytes", metric.getDiskBytes());
-			values.put("diskBytesQuota", metric.getDiskBytesQuota());
-			values.put("memoryBytes", metric.getMemoryBytes());
-			values.put("memoryBytesQuota", metric.getMemoryBytesQuota());
+				if (downsampler.addContainerMetric(encoder, route(envelope, encoder), metric)) {
+					return false;
+				}
+			}
 
-			List<String> fields = values.entrySet().stream().map((e) -> writeFieldValue(e.getKey(), e.getValue())).filter(StringUtils::hasText).collect(Collectors.toList());
-			messageBuilder.append(" ").append(fields.stream().collect(Collectors.joining(",")));
+			encoder.field("instanceIndex", metric.getInstanceIndex())
+					.field("cpuPercentage", metric.getCpuPercentage())
+					.field("diskBytes", metric.getDiskBytes())
+					.field("diskBytesQuota", metric.getDiskBytesQuota())
+					.field("memoryBytes", metric.getMemoryBytes())
+					.field("memoryBytesQuota", metric.getMemoryBytesQuota());
 
-			finishMessage(messageBuilder, envelope);
+			return true;
 		}
+
+		return false;
 	}
 
-	private void writeValueMetric(StringBuilder messageBuilder, Envelope envelope) {
+	private boolean writeValueMetric(LineProtocolEncoder encoder, Envelope envelope) {
 		ValueMetric metric = envelope.getValueMetric();
 
 		if (metric != null) {
-			Map<String, String> tags = getTags(envelope);
-			tags.put("eventType", "ValueMetric");
-			writeCommonSeriesData(messageBuilder, envelope, metric.getName(), tags);
+			writeCommonSeriesData(encoder, envelope, metric.getName(), "ValueMetric", null);
 
-			List<String> fields = Arrays.asList(writeFieldValue("value", metric.value()),
-					writeFieldValue("unit", metric.getUnit()));
+			if (downsampleValueMetrics && downsampler.addValueMetric(encoder, route(envelope, encoder), metric.value(), metric.getUnit())) {
+				return false;
+			}
 
-			messageBuilder.append(" ").append(fields.stream().filter(StringUtils::hasText).collect(Collectors.joining(",")));
+			encoder.field("value", metric.value())
+					.field("unit", metric.getUnit());
 
-			finishMessage(messageBuilder, envelope);
+			return true;
 		}
+
+		return false;
 	}
 
-	private void writeCounterEvent(StringBuilder messageBuilder, Envelope envelope) {
+	private boolean writeCounterEvent(LineProtocolEncoder encoder, Envelope envelope) {
 		CounterEvent event = envelope.getCounterEvent();
 
 		if (event != null) {
-			Map<String, String> tags = getTags(envelope);
-			tags.put("eventType", "CounterEvent");
+			writeCommonSeriesData(encoder, envelope, event.getName(), "CounterEvent", null);
 
-			writeCommonSeriesData(messageBuilder, envelope, event.getName(), tags);
-
-			List<String> fields = Arrays.asList(writeFieldValue("total", event.getTotal()),
-					writeFieldValue("delta", event.getDelta()));
+			if (counterCoalescer != null && counterCoalescer.addCounterEvent(encoder, route(envelope, encoder), event)) {
+				return false;
+			}
 
-			messageBuilder.append(" ").append(fields.stream().filter(StringUtils::hasText).collect(Collectors.joining(",")));
+			encoder.field("total", event.getTotal())
+					.field("delta", event.getDelta());
 
-			finishMessage(messageBuilder, envelope);
+			return true;
 		}
+
+		return false;
 	}
 
-	private void writeHttpStartStop(StringBuilder builder, Envelope envelope) {
+	private boolean writeHttpStartStop(LineProtocolEncoder encoder, Envelope envelope) {
 		HttpStartStop event = envelope.getHttpStartStop();
+
 		if (event != null) {
-			Map<String, String> tags = getTags(envelope);
-			tags.put("eventType", "HttpStartStop");
+			String applicationId = event.getApplicationId() != null ? event.getApplicationId().toString() : null;
 
-			if (event.getApplicationId() != null) {
-				tags.putAll(appDataCache.getAppData(event.getApplicationId().toString()));
-			}
+			if (latencyHistograms != null) {
+				writeCommonSeriesData(encoder, envelope, "HttpLatency", "HttpStartStop", applicationId);
+				if (latencyHistograms.addRequest(encoder, route(envelope, encoder), event)) {
+					return false;
+				}
 
-			writeCommonSeriesData(builder, envelope, "HttpStartStop", tags);
-
-			List<String> fields = new ArrayList<>();
-
-			fields.add(writeFieldValue("contentLength", event.getContentLength()));
-			fields.add(writeFieldValue("instanceIndex", event.getInstanceIndex()));
-			fields.add(writeFieldValue("startTimestamp", event.getStartTimestamp()));
-			fields.add(writeFieldValue("stopTimestamp", event.getStopTimestamp()));
-			fields.add(writeFieldValue("statusCode", event.getStatusCode()));
-			fields.add(writeFieldValue("instanceId", event.getInstanceId()));
-			fields.add(writeFieldValue("method", event.getMethod().toString()));
-			fields.add(writeFieldValue("peerType", event.getPeerType().toString()));
-			fields.add(writeFieldValue("uri", event.getUri()));
-			fields.add(writeFieldValue("userAgent", event.getUserAgent()));
-			fields.add(writeFieldValue("remoteAddress", event.getRemoteAddress()));
-			if (!CollectionUtils.isEmpty(event.getForwarded())) {
-				fields.add(writeFieldValue("forwarded", event.getForwarded().stream().collect(Collectors.joining(","))));
+				// written as is, with the raw requests
+				writeSeriesPrefix(encoder.reset(), envelope, "HttpStartStop", "HttpStartStop", applicationId);
+			} else {
+				writeCommonSeriesData(encoder, envelope, "HttpStartStop", "HttpStartStop", applicationId);
 			}
 
-			builder.append(" ").append(fields.stream().filter(StringUtils::hasText).collect(Collectors.joining(",")));
-
-			finishMessage(builder, envelope);
+			encoder.field("contentLength", event.getContentLength())
+					.field("instanceIndex", event.getInstanceIndex())
+					.field("startTimestamp", event.getStartTimestamp())
+					.field("stopTimestamp", event.getStopTimestamp())
+					.field("statusCode", event.getStatusCode())
+					.field("instanceId", event.getInstanceId())
+					.field("method", event.getMethod() != null ? event.getMethod().toString() : null)
+					.field("peerType", event.getPeerType() != null ? event.getPeerType().toString() : null)
+					.field("uri", event.getUri())
+					.field("userAgent", event.getUserAgent())
+					.field("remoteAddress", event.getRemoteAddress())
+					.field("forwarded", event.getForwarded());
+
+			return true;
 		}
-	}
 
-	private String writeFieldValue(String fieldName, Object fieldValue) {
-		StringBuilder buffer = new StringBuilder();
+		return false;
+	}
 
-		if (fieldValue != null && StringUtils.hasText(fieldName)) {
-			if (fieldValue instanceof String) {
-				if (StringUtils.hasText(fieldValue.toString().trim())) {
-					buffer.append(fieldName).append("=\"").append(fieldValue).append('"');
-				}
-			} else {
-				buffer.append(fieldName).append('=').append(fieldValue);
-			}
+	/**
+	 * Write the application, space and organization tags, already encoded in the cache. An app that is
+	 * not in the cache gets the same tags, with <tt>null</tt> names.
+	 *
+	 * @param encoder       the point being written
+	 * @param applicationId the application guid
+	 */
+	private void writeAppData(LineProtocolEncoder encoder, String applicationId) {
+		AppData app = appDataCache.getApplication(applicationId);
 
-			return buffer.toString();
+		if (app != null) {
+			app.writeTags(encoder);
+		} else {
+			AppData.writeTags(encoder, applicationId, null, null, null, null, null);
 		}
-
-		return null;
 	}
 
 	/**
-	 * Get all the tags from the Envelope plus any EventType-specific fields into a single Map
+	 * Write all the tags from the Envelope plus any EventType-specific fields
 	 *
+	 * @param encoder  the point being written
 	 * @param envelope the Event
-	 * @return the tag map
 	 */
-	private Map<String, String> getTags(Envelope envelope) {
-		final Map<String, String> tags = new LinkedHashMap<>();
-
+	private void writeTags(LineProtocolEncoder encoder, Envelope envelope) {
 		if (StringUtils.hasText(foundation)) {
-			tags.put("foundation", foundation);
+			encoder.tag("foundation", foundation);
 		}
 
-		if (isTaggableField("tags") && !CollectionUtils.isEmpty(envelope.getTags())) {
-			envelope.getTags().forEach((k, v) -> {
-				if (StringUtils.hasText(v)) {
-					tags.put(k, v);
+		if (tagEnvelopeTags && !CollectionUtils.isEmpty(envelope.getTags())) {
+			for (Map.Entry<String, String> tag : envelope.getTags().entrySet()) {
+				if (StringUtils.hasText(tag.getValue())) {
+					encoder.tag(tag.getKey(), tag.getValue());
 				}
-			});
+			}
 		}
 
-
-		if (isTaggableField("ip") && StringUtils.hasText(envelope.getIp())) {
-			tags.put("ip", envelope.getIp());
+		if (tagIp && StringUtils.hasText(envelope.getIp())) {
+			encoder.tag("ip", envelope.getIp());
 		}
 
-		if (isTaggableField("deployment") && StringUtils.hasText(envelope.getDeployment())) {
-			tags.put("deployment", envelope.getDeployment());
+		if (tagDeployment && StringUtils.hasText(envelope.getDeployment())) {
+			encoder.tag("deployment", envelope.getDeployment());
 		}
 
-		if (isTaggableField("job") && StringUtils.hasText(envelope.getJob())) {
-			tags.put("job", envelope.getJob());
+		if (tagJob && StringUtils.hasText(envelope.getJob())) {
+			encoder.tag("job", envelope.getJob());
 		}
 
-		if (isTaggableField("index") && StringUtils.hasText(envelope.getIndex())) {
-			tags.put("index", envelope.getIndex());
+		if (tagIndex && StringUtils.hasText(envelope.getIndex())) {
+			encoder.tag("index", envelope.getIndex());
 		}
-
-		return tags;
 	}
 
 	private boolean isTaggableField(String field) {
@@ -24,23 +24,63 @@ import org.cloudfoundry.doppler.Envelope;
 import org.cloudfoundry.doppler.EventType;
 import org.cloudfoundry.doppler.FirehoseRequest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.context.SmartLifecycle;
+import reactor.core.Disposable;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
- * Read events from the firehose and delegate to the serializer
+ * Read events from the firehose and delegate to the serializer.
+ *
+ * Events are partitioned by series into <tt>shards</tt> shards, each serialized on a thread of its own,
+ * through a buffer of at most <tt>envelopeBufferSize</tt> envelopes. Demand is only signalled upstream as
+ * the serializers keep up, and the {@link OverflowPolicy} decides what happens while the buffer is full.
  */
 @RequiredArgsConstructor
 @Slf4j
-public class FirehoseReader implements SmartLifecycle {
+public class FirehoseReader implements SmartLifecycle, PublicMetrics {
+
+	// how many envelopes the serializer thread requests at a time when the overflow buffer sits in front of it
+	private static final int PREFETCH = 256;
+
 	private final DopplerClient dopplerClient;
 	private final NozzleProperties properties;
 	private final FirehoseEventSerializer writer;
 
+	private final Map<EventType, String> droppedCounterNames = new EnumMap<>(EventType.class);
+	private final Map<EventType, String> duplicateCounterNames = new EnumMap<>(EventType.class);
+
 	private Runnable onCompleteCallback = () -> {};
 
-	private boolean running = false;
+	private CounterService counterService;
+
+	private EnvelopeDeduplicator deduplicator;
+
+	private Scheduler scheduler;
+
+	private Disposable subscription;
+
+	private volatile Connection[] connections = new Connection[0];
+
+	private volatile boolean running = false;
 
 	@Override
 	public boolean isAutoStartup() {
@@ -61,16 +101,88 @@ public class FirehoseReader implements SmartLifecycle {
 
 		log.info("Accepting event types: {}", properties.getCapturedEvents().stream().map(EventType::toString).collect(Collectors.joining(",")));
 
-		// Thanks to Ben Hale for the help with the doOnError and retry code.
-		dopplerClient.firehose(request)
-				.doOnError(this::receiveError)
-				.retry()
+		for (EventType eventType : EventType.values()) {
+			droppedCounterNames.put(eventType, "events.dropped." + eventType.toString());
+			duplicateCounterNames.put(eventType, "events.duplicate." + eventType.toString());
+		}
+
+		Set<EventType> capturedEvents = properties.getCapturedEvents().isEmpty()
+				? EnumSet.noneOf(EventType.class) : EnumSet.copyOf(properties.getCapturedEvents());
+
+		// Doppler spreads the events of a subscription across all of its connections
+		int connectionCount = Math.max(1, properties.getFirehoseConnections());
+		log.info("Opening {} firehose connection(s)", connectionCount);
+
+		connections = new Connection[connectionCount];
+		List<Flux<Envelope>> streams = new ArrayList<>(connectionCount);
+		for (int i = 0; i < connectionCount; ++i) {
+			Connection connection = new Connection(i);
+			connections[i] = connection;
+
+			// Thanks to Ben Hale for the help with the error handling and retry code.
+			streams.add(dopplerClient.firehose(request)
+					.doOnNext(envelope -> connection.received())
+					.retryWhen(errors -> errors.concatMap(error -> Mono.delay(Duration.ofMillis(connection.receiveError(error)))))
+					.filter(envelope -> capturedEvents.contains(envelope.getEventType())));
+		}
+
+		Flux<Envelope> events = connectionCount == 1 ? streams.get(0) : Flux.merge(streams);
+
+		int bufferSize = Math.max(1, properties.getEnvelopeBufferSize());
+		int prefetch = bufferSize;
+
+		log.info("Buffering up to {} envelopes, overflow policy {}", bufferSize, properties.getOverflowPolicy());
+		switch (properties.getOverflowPolicy()) {
+			case dropOldest:
+				events = events.onBackpressureBuffer(bufferSize, this::dropped, BufferOverflowStrategy.DROP_OLDEST);
+				prefetch = Math.min(PREFETCH, bufferSize);
+				break;
+			case dropNewest:
+				events = events.onBackpressureBuffer(bufferSize, this::dropped, BufferOverflowStrategy.DROP_LATEST);
+				prefetch = Math.min(PREFETCH, bufferSize);
+				break;
+			case block:
+			default:
+				// the serializer queue is the only buffer, once it is full no more events are requested
+				break;
+		}
+
+		int shards = Math.max(1, properties.getShards());
+		final int shardPrefetch = Math.max(1, prefetch / shards);
+
+		Flux<Envelope> serialized;
+		if (shards == 1) {
+			scheduler = Schedulers.newSingle("firehose-serializer");
+			serialized = events
+					.publishOn(scheduler, prefetch)
+					.doOnNext(envelope -> receiveEvent(envelope, 0));
+		} else {
+			// one worker per shard, each group is serialized in order on the worker it was assigned
+			scheduler = Schedulers.newParallel("firehose-serializer", shards);
+			serialized = events
+					.groupBy(writer::shardOf, prefetch)
+					.flatMap(shard -> shard
+							.publishOn(scheduler, shardPrefetch)
+							.doOnNext(envelope -> receiveEvent(envelope, shard.key())), shards);
+		}
+
+		subscription = serialized
 				.doOnComplete(onCompleteCallback)
-				.subscribe(this::receiveEvent, this::receiveError);
+				.subscribe(null, this::receiveError);
+
+		running = true;
 	}
 
 	@Override
 	public void stop() {
+		if (subscription != null) {
+			subscription.dispose();
+		}
+
+		if (scheduler != null) {
+			scheduler.dispose();
+		}
+
 		running = false;
 	}
 
@@ -91,16 +203,114 @@ public class FirehoseReader implements SmartLifecycle {
 		}
 	}
 
-	private void receiveEvent(Envelope envelope) {
-		if (properties.getCapturedEvents().contains(envelope.getEventType())) {
-			writer.writeMessage(envelope);
+	@Autowired(required = false)
+	public void setCounterService(CounterService counterService) {
+		this.counterService = counterService;
+	}
+
+	@Autowired(required = false)
+	public void setDeduplicator(EnvelopeDeduplicator deduplicator) {
+		this.deduplicator = deduplicator != null && deduplicator.isEnabled() ? deduplicator : null;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Connection[] connections = this.connections;
+
+		List<Metric<?>> metrics = new ArrayList<>(connections.length * 3);
+		for (Connection connection : connections) {
+			String prefix = "firehose.connection." + connection.index;
+			metrics.add(new Metric<>(prefix + ".received", connection.received.sum()));
+			metrics.add(new Metric<>(prefix + ".rate", connection.rate()));
+			metrics.add(new Metric<>(prefix + ".reconnects", connection.reconnects.sum()));
+		}
+
+		return metrics;
+	}
+
+	private void receiveEvent(Envelope envelope, int shard) {
+		if (deduplicator != null && deduplicator.isDuplicate(envelope)) {
+			if (counterService != null) {
+				counterService.increment(duplicateCounterNames.get(envelope.getEventType()));
+			}
+			return;
+		}
+
+		writer.writeMessage(envelope, shard);
+	}
+
+	private void dropped(Envelope envelope) {
+		if (counterService != null) {
+			counterService.increment(droppedCounterNames.get(envelope.getEventType()));
 		}
 	}
 
 	private void receiveError(Throwable error) {
 		log.error("Error in receiving Firehose event: {}", error.getMessage());
-		if (log.isDebugEnabled()) {
-			error.printStackTrace();
+		log.debug("Firehose error", error);
+	}
+
+	/**
+	 * The counters of one firehose connection
+	 */
+	private class Connection {
+
+		private final int index;
+
+		private final LongAdder received = new LongAdder();
+		private final LongAdder reconnects = new LongAdder();
+
+		// the wait before the next reconnect, 0 once events flow again
+		private volatile long backoff;
+
+		private long sampledAt = System.nanoTime();
+		private long sampledCount;
+		private double rate;
+
+		Connection(int index) {
+			this.index = index;
+		}
+
+		void received() {
+			received.increment();
+
+			if (backoff != 0) {
+				backoff = 0;
+			}
+		}
+
+		/**
+		 * @return how long to wait in ms before reconnecting, doubling from minBackoff up to maxBackoff while
+		 * the connection keeps failing without receiving anything
+		 */
+		long receiveError(Throwable error) {
+			long delay = backoff == 0 ? Math.max(1, properties.getMinBackoff())
+					: Math.min(backoff * 2, Math.max(backoff, properties.getMaxBackoff()));
+			backoff = delay;
+
+			reconnects.increment();
+			log.error("Error in receiving Firehose event on connection {}, reconnecting in {} ms: {}", index, delay,
+					error.getMessage());
+			log.debug("Firehose error on connection {}", index, error);
+
+			return delay;
+		}
+
+		/**
+		 * @return events per second since the previous sample, re-sampled at most once a second
+		 */
+		synchronized double rate() {
+			long now = System.nanoTime();
+			long elapsed = now - sampledAt;
+
+			if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+				long count = received.sum();
+				rate = (count - sampledCount) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+				sampledCount = count;
+				sampledAt = now;
+			}
+
+			return rate;
 		}
 	}
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.Getter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a batch is sent: once it holds <tt>targetPoints</tt> points, once adding another point would
+ * take the body over <tt>maxBytes</tt>, or once <tt>linger</tt> ms have passed since the first point was
+ * added, whichever comes first.
+ *
+ * <tt>targetPoints</tt> starts at <tt>maxPoints</tt>, and may be lowered and raised again at any time by a
+ * {@link BatchSizeController}. Batches being filled pick up the new target with their next point.
+ */
+@Getter
+public class FlushPolicy {
+
+	/**
+	 * What caused a batch to be sent
+	 */
+	public enum Trigger {
+		count, bytes, linger, shutdown
+	}
+
+	private final int maxPoints;
+	private final long maxBytes;
+	private final long lingerNanos;
+
+	private volatile int targetPoints;
+
+	public FlushPolicy(int maxPoints, long maxBytes, long lingerMillis) {
+		this.maxPoints = Math.max(1, maxPoints);
+		this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+		this.lingerNanos = lingerMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(lingerMillis) : Long.MAX_VALUE;
+		this.targetPoints = this.maxPoints;
+	}
+
+	/**
+	 * @param targetPoints the number of points a batch is sent at, kept between 1 and <tt>maxPoints</tt>
+	 */
+	public void setTargetPoints(int targetPoints) {
+		this.targetPoints = Math.max(1, Math.min(maxPoints, targetPoints));
+	}
+
+	/**
+	 * @param bytes     the size of the batch so far
+	 * @param nextBytes the size of the point to add
+	 * @return true if the point can be added without going over the byte limit. A point always fits an
+	 * empty batch, even if it is bigger than the limit on its own.
+	 */
+	public boolean fits(long bytes, long nextBytes) {
+		return bytes == 0 || bytes + nextBytes <= maxBytes;
+	}
+
+	public boolean isFull(int points) {
+		return points >= targetPoints;
+	}
+
+	/**
+	 * @param points     the number of points in the batch
+	 * @param firstNanos when the first point was added, from <tt>System.nanoTime()</tt>
+	 * @param now        the current <tt>System.nanoTime()</tt>
+	 * @return the nanos left until the batch has to be sent, 0 if it is due, or Long.MAX_VALUE if the batch is empty
+	 */
+	public long remainingLinger(int points, long firstNanos, long now) {
+		if (points == 0 || lingerNanos == Long.MAX_VALUE) {
+			return Long.MAX_VALUE;
+		}
+
+		return Math.max(0, lingerNanos - (now - firstNanos));
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.lineprotocol.LineProtocolEncoder;
+import org.cloudfoundry.doppler.ContainerMetric;
+import org.cloudfoundry.doppler.EventType;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Downsamples ValueMetrics and ContainerMetrics, the gauges of the firehose, to one point per series per
+ * window.
+ *
+ * Each numeric field is written as its mean under its own name, so existing queries keep working, plus
+ * <tt>_min</tt>, <tt>_max</tt> and <tt>_last</tt> variants. <tt>count</tt> is the number of events in the
+ * window. Fields that are integers in the raw points stay integers, the mean is rounded.
+ *
+ * ContainerMetrics are split per app instance, otherwise the instances of an app would overwrite each
+ * other's point. Their prefix is expected to end with the {@link #INSTANCE_TAG} tag, so the series key
+ * and its route are the same whether a point is downsampled or written as is. The <tt>instanceIndex</tt>
+ * field stays an integer field, as in the raw points of the same measurement.
+ */
+public class GaugeDownsampler extends SeriesAggregator<GaugeDownsampler.Gauges> {
+
+	/**
+	 * The tag holding the app instance of downsampled ContainerMetrics, and of those written as they are
+	 * because {@link #addContainerMetric} refused them. The serializer writes it in the series prefix.
+	 */
+	public static final String INSTANCE_TAG = "instance";
+
+	private static final Field[] VALUE_FIELDS = {new Field("value", false)};
+
+	private static final Field[] CONTAINER_FIELDS = {
+			new Field("cpuPercentage", false),
+			new Field("diskBytes", true),
+			new Field("diskBytesQuota", true),
+			new Field("memoryBytes", true),
+			new Field("memoryBytesQuota", true)
+	};
+
+	private final Set<EventType> eventTypes = EnumSet.noneOf(EventType.class);
+
+	/**
+	 * @param window        the window length in millis, 0 disables downsampling
+	 * @param maxSeries     the max number of series downsampled at once
+	 * @param eventTypes    the event types to downsample, only ValueMetric and ContainerMetric are supported
+	 * @param batcher       where the downsampled points are written
+	 * @param integerFields whether integer fields are written as InfluxDB integers
+	 */
+	public GaugeDownsampler(long window, int maxSeries, Collection<EventType> eventTypes,
+							BatchedEventListener batcher, boolean integerFields) {
+		super("downsample", window, maxSeries, batcher, integerFields);
+
+		for (EventType eventType : eventTypes) {
+			if (eventType == EventType.VALUE_METRIC || eventType == EventType.CONTAINER_METRIC) {
+				this.eventTypes.add(eventType);
+			}
+		}
+	}
+
+	/**
+	 * @return whether events of this type are downsampled
+	 */
+	public boolean downsamples(EventType eventType) {
+		return isEnabled() && eventTypes.contains(eventType);
+	}
+
+	/**
+	 * Record a ValueMetric
+	 *
+	 * @param prefix the encoder holding the series prefix
+	 * @param target the index of the series' write target
+	 * @param value  the metric value
+	 * @param unit   the metric unit
+	 * @return false if the event could not be downsampled and should be written as is
+	 */
+	public boolean addValueMetric(LineProtocolEncoder prefix, int target, Double value, String unit) {
+		Gauges gauges = lock(prefix, -1, target);
+		if (gauges == null) {
+			return false;
+		}
+
+		try {
+			gauges.start(VALUE_FIELDS);
+			gauges.add(0, value);
+			gauges.unit = unit;
+		} finally {
+			unlock(gauges);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Record a ContainerMetric
+	 *
+	 * @param prefix the encoder holding the series prefix, tagged with the instance
+	 * @param target the index of the series' write target
+	 * @param metric the metric
+	 * @return false if the event could not be downsampled and should be written as is
+	 */
+	public boolean addContainerMetric(LineProtocolEncoder prefix, int target, ContainerMetric metric) {
+		Gauges gauges = lock(prefix, metric.getInstanceIndex() != null ? metric.getInstanceIndex() : -1, target);
+		if (gauges == null) {
+			return false;
+		}
+
+		try {
+			gauges.start(CONTAINER_FIELDS);
+			gauges.add(0, metric.getCpuPercentage());
+			gauges.add(1, metric.getDiskBytes());
+			gauges.add(2, metric.getDiskBytesQuota());
+			gauges.add(3, metric.getMemoryBytes());
+			gauges.add(4, metric.getMemoryBytesQuota());
+		} finally {
+			unlock(gauges);
+		}
+
+		return true;
+	}
+
+	@Override
+	protected Gauges newSeries(long id) {
+		return new Gauges(id);
+	}
+
+	@Override
+	protected void writeFields(Gauges gauges, LineProtocolEncoder encoder) {
+		if (gauges.instanceIndex >= 0) {
+			encoder.field("instanceIndex", gauges.instanceIndex);
+		}
+
+		for (int i = 0; i < gauges.fields.length; ++i) {
+			long count = gauges.counts[i];
+			if (count == 0) {
+				continue;
+			}
+
+			Field field = gauges.fields[i];
+			double mean = gauges.sums[i] / count;
+
+			if (field.integral) {
+				encoder.field(field.name, Math.round(mean))
+						.field(field.min, (long) gauges.mins[i])
+						.field(field.max, (long) gauges.maxes[i])
+						.field(field.last, (long) gauges.lasts[i]);
+			} else {
+				encoder.field(field.name, mean)
+						.field(field.min, gauges.mins[i])
+						.field(field.max, gauges.maxes[i])
+						.field(field.last, gauges.lasts[i]);
+			}
+
+			gauges.counts[i] = 0;
+			gauges.sums[i] = 0;
+		}
+
+		encoder.field("count", gauges.events)
+				.field("unit", gauges.unit);
+
+		gauges.events = 0;
+	}
+
+	/**
+	 * The min, max, sum and last value of each field of a series, over the current window
+	 */
+	static final class Gauges extends SeriesAggregator.Series {
+
+		private final long instanceIndex;
+
+		private Field[] fields;
+
+		private long[] counts;
+		private double[] mins;
+		private double[] maxes;
+		private double[] sums;
+		private double[] lasts;
+
+		private long events;
+
+		private String unit;
+
+		Gauges(long instanceIndex) {
+			this.instanceIndex = instanceIndex;
+		}
+
+		/**
+		 * Count an event, setting up the fields on the first one
+		 */
+		void start(Field[] fields) {
+			if (this.fields == null) {
+				this.fields = fields;
+
+				this.counts = new long[fields.length];
+				this.mins = new double[fields.length];
+				this.maxes = new double[fields.length];
+				this.sums = new double[fields.length];
+				this.lasts = new double[fields.length];
+			}
+
+			++events;
+		}
+
+		void add(int field, Double value) {
+			if (value != null) {
+				add(field, value.doubleValue());
+			}
+		}
+
+		void add(int field, Long value) {
+			if (value != null) {
+				add(field, value.doubleValue());
+			}
+		}
+
+		void add(int field, double value) {
+			if (Double.isNaN(value) || Double.isInfinite(value)) {
+				return;
+			}
+
+			if (counts[field]++ == 0) {
+				mins[field] = value;
+				maxes[field] = value;
+			} else {
+				mins[field] = Math.min(mins[field], value);
+				maxes[field] = Math.max(maxes[field], value);
+			}
+
+			sums[field] += value;
+			lasts[field] = value;
+		}
+
+		@Override
+		protected boolean isEmpty() {
+			return events == 0;
+		}
+	}
+
+	/**
+	 * A downsampled field, with the names of its variants
+	 */
+	private static final class Field {
+
+		private final String name;
+		private final String min;
+		private final String max;
+		private final String last;
+
+		// written as an integer, like in the raw points
+		private final boolean integral;
+
+		Field(String name, boolean integral) {
+			this.name = name;
+			this.min = name + "_min";
+			this.max = name + "_max";
+			this.last = name + "_last";
+			this.integral = integral;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzips write bodies. Deflaters hold native memory and are expensive to create, so they are pooled and
+ * reset between bodies instead of being created per request.
+ */
+@Service
+@Slf4j
+public class GzipCompressor implements PublicMetrics {
+
+	private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+	private static final int TRAILER_LENGTH = 8;
+
+	@Getter
+	private final boolean enabled;
+
+	private final int level;
+
+	private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	@Autowired
+	public GzipCompressor(NozzleProperties properties) {
+		this(properties.isGzip(), properties.getGzipLevel());
+	}
+
+	public GzipCompressor(boolean enabled, int level) {
+		this.enabled = enabled;
+		this.level = level;
+
+		if (enabled) {
+			log.info("Compressing write requests with gzip level {}", level);
+		}
+	}
+
+	/**
+	 * @param body the uncompressed body
+	 * @return the body as a complete gzip member
+	 */
+	public byte[] compress(byte[] body) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(level, true);
+		}
+
+		try {
+			deflater.setInput(body);
+			deflater.finish();
+
+			// line protocol compresses well, start at a quarter and grow if needed
+			byte[] out = new byte[HEADER.length + Math.max(64, body.length / 4) + TRAILER_LENGTH];
+			System.arraycopy(HEADER, 0, out, 0, HEADER.length);
+
+			int position = HEADER.length;
+			while (!deflater.finished()) {
+				if (position == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				position += deflater.deflate(out, position, out.length - position);
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(body);
+
+			if (out.length < position + TRAILER_LENGTH) {
+				out = Arrays.copyOf(out, position + TRAILER_LENGTH);
+			}
+			position = writeIntLE(out, position, (int) crc.getValue());
+			position = writeIntLE(out, position, body.length);
+
+			bytesIn.add(body.length);
+			bytesOut.add(position);
+
+			return position == out.length ? out : Arrays.copyOf(out, position);
+		} finally {
+			deflater.reset();
+			deflaters.offer(deflater);
+		}
+	}
+
+	@PreDestroy
+	public void close() {
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null) {
+			deflater.end();
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>(2);
+		metrics.add(new Metric<>("write.gzip.bytes.in", bytesIn.sum()));
+		metrics.add(new Metric<>("write.gzip.bytes.out", bytesOut.sum()));
+
+		return metrics;
+	}
+
+	private static int writeIntLE(byte[] out, int position, int value) {
+		out[position++] = (byte) value;
+		out[position++] = (byte) (value >> 8);
+		out[position++] = (byte) (value >> 16);
+		out[position++] = (byte) (value >> 24);
+		return position;
+	}
+}
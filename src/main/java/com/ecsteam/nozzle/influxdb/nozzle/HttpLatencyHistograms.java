@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.lineprotocol.LineProtocolEncoder;
+import org.cloudfoundry.doppler.HttpStartStop;
+
+import java.util.Arrays;
+
+/**
+ * Folds HttpStartStop events into latency histograms, one per app, status class and method per window,
+ * instead of writing a point per request.
+ *
+ * The point of each histogram is tagged with <tt>statusClass</tt> (<tt>2xx</tt>, <tt>5xx</tt>...) and
+ * <tt>method</tt>, and has the fields <tt>count</tt>, <tt>errors</tt> (5xx responses), and <tt>p50</tt>,
+ * <tt>p90</tt>, <tt>p99</tt> and <tt>max</tt> latencies in milliseconds. Latency is the stop timestamp
+ * minus the start timestamp of the request.
+ *
+ * The histograms are log-linear, like HdrHistogram: durations are counted in microseconds, exactly below
+ * 32, then in 16 buckets per power of two, so a percentile is at most 1/16th above the true value. Buckets
+ * are allocated one power of two at a time, as durations in that range are seen, so a histogram holds a
+ * few hundred bytes for a typical latency spread and about 1.7 kB at most.
+ */
+public class HttpLatencyHistograms extends SeriesAggregator<HttpLatencyHistograms.Histogram> {
+
+	// durations below 2^SUB_BITS micros are counted exactly
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int HALF = SUB_BUCKETS / 2;
+
+	// 2^30 micros, about 18 minutes, longer durations are counted as that
+	private static final int MAX_BITS = 30;
+	private static final long MAX_MICROS = (1L << MAX_BITS) - 1;
+
+	// the exact range, then one range per power of two above it
+	private static final int RANGES = MAX_BITS - SUB_BITS + 1;
+
+	private static final String[] STATUS_CLASSES = {"unknown", "1xx", "2xx", "3xx", "4xx", "5xx"};
+
+	/**
+	 * @param window        the window length in millis, 0 writes every request
+	 * @param maxSeries     the max number of histograms kept at once
+	 * @param batcher       where the histogram points are written
+	 * @param integerFields whether integer fields are written as InfluxDB integers
+	 */
+	public HttpLatencyHistograms(long window, int maxSeries, BatchedEventListener batcher, boolean integerFields) {
+		super("latency", window, maxSeries, batcher, integerFields);
+	}
+
+	/**
+	 * Record a request
+	 *
+	 * @param prefix the encoder holding the series prefix
+	 * @param target the index of the series' write target
+	 * @param event  the request
+	 * @return false if the request could not be recorded, because it has no duration or too many series are
+	 * tracked, and should be written as is
+	 */
+	public boolean addRequest(LineProtocolEncoder prefix, int target, HttpStartStop event) {
+		if (event.getStartTimestamp() == null || event.getStopTimestamp() == null) {
+			return false;
+		}
+
+		long nanos = event.getStopTimestamp() - event.getStartTimestamp();
+		if (nanos < 0) {
+			return false;
+		}
+
+		int statusClass = statusClass(event.getStatusCode());
+		int method = event.getMethod() != null ? event.getMethod().ordinal() + 1 : 0;
+
+		Histogram histogram = lock(prefix, (long) statusClass << 16 | method, target);
+		if (histogram == null) {
+			return false;
+		}
+
+		try {
+			if (histogram.method == null && event.getMethod() != null) {
+				histogram.method = event.getMethod().toString();
+			}
+
+			histogram.record(nanos / 1000);
+		} finally {
+			unlock(histogram);
+		}
+
+		return true;
+	}
+
+	@Override
+	protected Histogram newSeries(long id) {
+		return new Histogram((int) (id >>> 16));
+	}
+
+	@Override
+	protected void writeTags(Histogram histogram, LineProtocolEncoder encoder) {
+		encoder.tag("statusClass", STATUS_CLASSES[histogram.statusClass]);
+		if (histogram.method != null) {
+			encoder.tag("method", histogram.method);
+		}
+	}
+
+	@Override
+	protected void writeFields(Histogram histogram, LineProtocolEncoder encoder) {
+		encoder.field("count", histogram.count)
+				.field("errors", histogram.statusClass == 5 ? histogram.count : 0L)
+				.field("p50", millis(histogram.percentile(0.50)))
+				.field("p90", millis(histogram.percentile(0.90)))
+				.field("p99", millis(histogram.percentile(0.99)))
+				.field("max", millis(histogram.max));
+
+		histogram.reset();
+	}
+
+	private static int statusClass(Integer statusCode) {
+		if (statusCode == null || statusCode < 100 || statusCode >= 600) {
+			return 0;
+		}
+
+		return statusCode / 100;
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000.0;
+	}
+
+	/**
+	 * @return the bucket a duration is counted in, the range it is in times {@link #SUB_BUCKETS}, plus its
+	 * top bits. Ranges above the first only use their upper half, as their top bit is always set
+	 */
+	static int bucketOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+
+		// the top SUB_BITS bits of the duration, HALF to SUB_BUCKETS - 1
+		int shift = 64 - Long.numberOfLeadingZeros(Math.min(micros, MAX_MICROS)) - SUB_BITS;
+		int sub = (int) (Math.min(micros, MAX_MICROS) >>> shift);
+
+		return shift * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the highest duration counted in a bucket
+	 */
+	static long highestOf(int bucket) {
+		int range = bucket / SUB_BUCKETS;
+		long sub = bucket % SUB_BUCKETS;
+
+		return range == 0 ? sub : ((sub + 1) << range) - 1;
+	}
+
+	/**
+	 * The latencies of one app, status class and method over the current window
+	 */
+	static final class Histogram extends SeriesAggregator.Series {
+
+		private final int statusClass;
+
+		private String method;
+
+		// one array per range, allocated when a duration in that range is first seen
+		private final int[][] counts = new int[RANGES][];
+
+		private long count;
+		private long max;
+
+		Histogram(int statusClass) {
+			this.statusClass = statusClass;
+		}
+
+		void record(long micros) {
+			int bucket = bucketOf(micros);
+			int range = bucket / SUB_BUCKETS;
+
+			if (counts[range] == null) {
+				counts[range] = new int[range == 0 ? SUB_BUCKETS : HALF];
+			}
+			counts[range][index(bucket)]++;
+
+			++count;
+			max = Math.max(max, Math.min(micros, MAX_MICROS));
+		}
+
+		/**
+		 * @return the highest duration of the bucket holding the percentile, no more than the max
+		 */
+		long percentile(double percentile) {
+			long rank = Math.max(1, (long) Math.ceil(percentile * count));
+			long seen = 0;
+
+			for (int range = 0; range < RANGES; ++range) {
+				if (counts[range] == null) {
+					continue;
+				}
+
+				for (int i = 0; i < counts[range].length; ++i) {
+					seen += counts[range][i];
+					if (seen >= rank) {
+						int bucket = range * SUB_BUCKETS + (range == 0 ? i : i + HALF);
+						return Math.min(highestOf(bucket), max);
+					}
+				}
+			}
+
+			return max;
+		}
+
+		private static int index(int bucket) {
+			return bucket < SUB_BUCKETS ? bucket : bucket % SUB_BUCKETS - HALF;
+		}
+
+		void reset() {
+			for (int[] range : counts) {
+				if (range != null) {
+					Arrays.fill(range, 0);
+				}
+			}
+
+			count = 0;
+			max = 0;
+		}
+
+		@Override
+		protected boolean isEmpty() {
+			return count == 0;
+		}
+	}
+}
@@ -22,17 +22,14 @@ import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.TrustStrategy;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.RequestEntity;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.ClientHttpResponse;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.retry.RetryContext;
 import org.springframework.retry.backoff.BackOffPolicy;
 import org.springframework.retry.backoff.ExponentialBackOffPolicy;
@@ -47,15 +44,15 @@ import org.springframework.web.client.ResponseErrorHandler;
 import org.springframework.web.client.RestTemplate;
 
 import javax.annotation.PostConstruct;
-import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.net.URI;
-import java.security.cert.X509Certificate;
-import java.util.Collections;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
 
 /**
@@ -65,9 +62,37 @@ import java.util.stream.Collectors;
 @Slf4j
 @Service
 public class InfluxDBBatchSender {
+	private static final MediaType LINE_PROTOCOL = new MediaType("text", "plain", StandardCharsets.UTF_8);
+
+	// error responses are logged by sendBatch, never thrown
+	private static final ResponseErrorHandler ERROR_HANDLER = new ResponseErrorHandler() {
+		@Override
+		public boolean hasError(ClientHttpResponse clientHttpResponse) throws IOException {
+			return clientHttpResponse.getRawStatusCode() > 399;
+		}
+
+		@Override
+		public void handleError(ClientHttpResponse clientHttpResponse) throws IOException {
+
+		}
+	};
+
+	private static final Map<Class<? extends Throwable>, Boolean> RETRYABLE = new HashMap<>();
+
+	static {
+		RETRYABLE.put(ResourceAccessException.class, true);
+		RETRYABLE.put(ServerErrorException.class, true);
+	}
+
 	private RestTemplate httpClient = new RestTemplate();
-	private URI uri;
 	private BackOffPolicy backOffPolicy;
+	private GzipCompressor compressor;
+	private InfluxDBConnectionPool connectionPool;
+
+	// the configured database, where everything goes unless routed elsewhere
+	private final WriteTarget defaultTarget = new WriteTarget("default", null, null);
+
+	private final WriteStats writeStats = new WriteStats();
 
 	private final NozzleProperties properties;
 	private final MetricsDestination influxDbDestination;
@@ -77,75 +102,127 @@ public class InfluxDBBatchSender {
 
 	@PostConstruct
 	public void postConstruct() throws Exception {
-		if (properties.isSkipSslValidation()) {
-			TrustStrategy acceptingTrustStrategy = (X509Certificate[] chain, String authType) -> true;
+		if (connectionPool != null) {
+			this.httpClient.setRequestFactory(connectionPool.getRequestFactory());
+		}
 
-			SSLContext sslContext = org.apache.http.ssl.SSLContexts.custom()
-					.loadTrustMaterial(null, acceptingTrustStrategy)
-					.build();
+		this.httpClient.setErrorHandler(ERROR_HANDLER);
+	}
 
-			SSLConnectionSocketFactory csf = new SSLConnectionSocketFactory(sslContext);
+	@Autowired(required = false)
+	public void setHttpClient(RestTemplate httpClient) {
+		if (httpClient != null) {
+			httpClient.setErrorHandler(ERROR_HANDLER);
+			this.httpClient = httpClient;
+		}
+	}
 
-			CloseableHttpClient apacheHttpClient = HttpClients.custom()
-					.setSSLSocketFactory(csf)
-					.build();
+	@Autowired(required = false)
+	public void setConnectionPool(InfluxDBConnectionPool connectionPool) {
+		this.connectionPool = connectionPool;
+	}
 
-			HttpComponentsClientHttpRequestFactory requestFactory =
-					new HttpComponentsClientHttpRequestFactory();
+	@Autowired(required = false)
+	public void setSpool(BatchSpool spool) {
+		defaultTarget.setSpool(spool);
+	}
 
-			requestFactory.setHttpClient(apacheHttpClient);
+	public WriteTarget getDefaultTarget() {
+		return defaultTarget;
+	}
 
-			this.httpClient.setRequestFactory(requestFactory);
-		}
+	/**
+	 * @return the latency and outcome of every write request, to any target
+	 */
+	public WriteStats getWriteStats() {
+		return writeStats;
 	}
 
 	@Autowired(required = false)
-	public void setHttpClient(RestTemplate httpClient) {
-		if (httpClient != null) {
-			this.httpClient = httpClient;
-		}
+	public void setCompressor(GzipCompressor compressor) {
+		this.compressor = compressor;
 	}
 
+	/**
+	 * Send a batch of encoded points to the default target, see {@link #sendBatch(WriteTarget, List)}
+	 *
+	 * @param messages the points, as UTF-8 lines without their newlines
+	 * @return completes once the batch has been written, or given up on
+	 */
 	@Async
-	void sendBatch(List<String> messages) {
+	CompletableFuture<Void> sendBatch(List<byte[]> messages) {
+		return send(defaultTarget, messages);
+	}
+
+	/**
+	 * Send a batch of encoded points, retrying on connection errors and 5xx responses. A batch that still can't be written
+	 * is spooled, if the target has a spool. While the target is unhealthy, batches go straight to the
+	 * spool and are replayed from there once it recovers. While the target's {@link CircuitBreaker} is
+	 * open, a batch is spooled or dropped without trying, and a batch being retried stops retrying.
+	 *
+	 * @param target   the database and retention policy to write to
+	 * @param messages the points, as UTF-8 lines without their newlines
+	 * @return completes once the batch has been written, or given up on
+	 */
+	@Async
+	CompletableFuture<Void> sendBatch(WriteTarget target, List<byte[]> messages) {
+		return send(target, messages);
+	}
+
+	private CompletableFuture<Void> send(WriteTarget target, List<byte[]> messages) {
 		log.trace("ENTER sendBatch");
-		httpClient.setErrorHandler(new ResponseErrorHandler() {
-			@Override
-			public boolean hasError(ClientHttpResponse clientHttpResponse) throws IOException {
-				return clientHttpResponse.getRawStatusCode() > 399;
-			}
 
-			@Override
-			public void handleError(ClientHttpResponse clientHttpResponse) throws IOException {
+		// built and compressed once, every attempt sends the same bytes
+		final byte[] content = join(messages);
+		final BatchSpool spool = target.getSpool();
+		final CircuitBreaker breaker = breakerOf(target);
 
-			}
-		});
+		if (!target.isHealthy() && spoolWhileUnhealthy(spool) && spool.append(content)) {
+			log.trace("InfluxDB is unhealthy, spooled the batch");
+			return CompletableFuture.completedFuture(null);
+		}
 
 		RetryTemplate retryable = new RetryTemplate();
 		retryable.setBackOffPolicy(getBackOffPolicy());
-		retryable.setRetryPolicy(new SimpleRetryPolicy(properties.getMaxRetries(),
-				Collections.singletonMap(ResourceAccessException.class, true)));
+		retryable.setRetryPolicy(new SimpleRetryPolicy(properties.getMaxRetries(), RETRYABLE));
+
+		final RequestEntity<byte[]> entity = createRequest(target, content);
 
 		final AtomicInteger counter = new AtomicInteger(0);
 		retryable.execute(retryContext -> {
 			int count = counter.incrementAndGet();
 			log.trace("Attempt {} to deliver this batch", count);
 
-			String body = messages.stream().collect(Collectors.joining("\n"));
-
-			RequestEntity<String> entity =
-					new RequestEntity<>(body, HttpMethod.POST, getUri());
+			// not retryable, goes straight to the recovery
+			if (!breaker.allowRequest()) {
+				throw new CircuitOpenException(target);
+			}
 
 			ResponseEntity<String> response;
+			try {
+				response = exchange(entity);
+			} catch (ResourceAccessException e) {
+				breaker.recordFailure();
+				throw e;
+			}
 
-			response = httpClient.exchange(entity, String.class);
+			if (response == null) {
+				log.warn("Interrupted while waiting to send a batch, dropping it");
+				return null;
+			}
 
-			if (response.getStatusCode() != HttpStatus.NO_CONTENT) {
-				log.error("Failed to write logs to InfluxDB! Expected status code 204, got {}", response.getStatusCodeValue());
+			record(breaker, response);
 
-				log.trace("Request Body: {}", body);
-				log.debug("Response Body: {}", response.getBody());
+			// InfluxDB restarting or overloaded, possibly behind the gorouter
+			if (response.getStatusCode().is5xxServerError()) {
+				logFailure(response, content);
+				throw new ServerErrorException(response.getStatusCode());
+			}
 
+			target.setHealthy(true);
+
+			if (response.getStatusCode() != HttpStatus.NO_CONTENT) {
+				logFailure(response, content);
 			} else {
 				log.trace("batch sent successfully!");
 			}
@@ -156,18 +233,211 @@ public class InfluxDBBatchSender {
 		}, recoveryContext -> {
 			log.trace("Failed after {} attempts!", counter.get());
 
+			target.setHealthy(false);
+
+			if (spool != null && spool.isEnabled()) {
+				spool.append(content);
+			}
+
 			if (recoverCallback != null) {
 				recoverCallback.accept(recoveryContext);
 			}
 
 			return null;
 		});
+
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Write a batch once to the default target, without retrying, as the spool replays it
+	 *
+	 * @param content the body of the batch
+	 * @return true if InfluxDB took the batch, or rejected it for good. False if it should be tried again.
+	 */
+	public boolean write(byte[] content) {
+		return write(defaultTarget, content);
 	}
 
-	private URI getUri() {
+	/**
+	 * Write a batch once, without retrying, as the spool replays it
+	 *
+	 * @param target  the database and retention policy to write to
+	 * @param content the body of the batch
+	 * @return true if InfluxDB took the batch, or rejected it for good. False if it should be tried again.
+	 */
+	public boolean write(WriteTarget target, byte[] content) {
+		CircuitBreaker breaker = breakerOf(target);
+		if (!breaker.allowRequest()) {
+			return false;
+		}
+
+		ResponseEntity<String> response;
+		try {
+			response = exchange(createRequest(target, content));
+		} catch (ResourceAccessException e) {
+			breaker.recordFailure();
+			target.setHealthy(false);
+			return false;
+		}
+
+		if (response == null) {
+			return false;
+		}
+
+		record(breaker, response);
+
+		// like a connection error, live batches go to the spool until a replay gets through
+		if (response.getStatusCode().is5xxServerError()) {
+			logFailure(response, content);
+			target.setHealthy(false);
+			return false;
+		}
+
+		target.setHealthy(true);
+
+		if (response.getStatusCode() != HttpStatus.NO_CONTENT) {
+			logFailure(response, content);
+		}
+
+		return true;
+	}
+
+	public boolean isHealthy() {
+		return defaultTarget.isHealthy();
+	}
+
+	/**
+	 * @return the target's circuit breaker, created with the first request
+	 */
+	CircuitBreaker breakerOf(WriteTarget target) {
+		CircuitBreaker breaker = target.getCircuitBreaker();
+
+		if (breaker == null) {
+			synchronized (target) {
+				breaker = target.getCircuitBreaker();
+				if (breaker == null) {
+					breaker = new CircuitBreaker(target.getName(), properties.getBreakerFailureThreshold(),
+							properties.getBreakerOpenTime());
+					target.setCircuitBreaker(breaker);
+				}
+			}
+		}
+
+		return breaker;
+	}
+
+	private static void record(CircuitBreaker breaker, ResponseEntity<String> response) {
+		if (response.getStatusCode().is5xxServerError()) {
+			breaker.recordFailure();
+		} else {
+			breaker.recordSuccess();
+		}
+	}
+
+	private boolean spoolWhileUnhealthy(BatchSpool spool) {
+		return spool != null && spool.isEnabled() && properties.isSpoolWhileUnhealthy();
+	}
+
+	private RequestEntity<byte[]> createRequest(WriteTarget target, byte[] content) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(LINE_PROTOCOL);
+
+		byte[] payload;
+		if (compressor != null && compressor.isEnabled()) {
+			payload = compressor.compress(content);
+			headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+		} else {
+			payload = content;
+		}
+
+		return new RequestEntity<>(payload, headers, HttpMethod.POST, getUri(target));
+	}
+
+	/**
+	 * @return the response, or null if interrupted while waiting for an in-flight permit
+	 */
+	private ResponseEntity<String> exchange(RequestEntity<byte[]> entity) {
+		if (connectionPool == null) {
+			return timedExchange(entity);
+		}
+
+		try {
+			connectionPool.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+		try {
+			return timedExchange(entity);
+		} finally {
+			connectionPool.release();
+		}
+	}
+
+	/**
+	 * Make the request and record it in the write stats, without the wait for a connection
+	 */
+	private ResponseEntity<String> timedExchange(RequestEntity<byte[]> entity) {
+		long started = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			ResponseEntity<String> response = httpClient.exchange(entity, String.class);
+			failed = response.getStatusCode().is5xxServerError();
+			return response;
+		} finally {
+			writeStats.record(System.nanoTime() - started, failed);
+		}
+	}
+
+	private void logFailure(ResponseEntity<String> response, byte[] content) {
+		log.error("Failed to write logs to InfluxDB! Expected status code 204, got {}", response.getStatusCodeValue());
+
+		if (log.isTraceEnabled()) {
+			log.trace("Request Body: {}", new String(content, StandardCharsets.UTF_8));
+		}
+		log.debug("Response Body: {}", response.getBody());
+	}
+
+	/**
+	 * Copy the lines into one newline separated body, sized exactly up front
+	 */
+	static byte[] join(List<byte[]> lines) {
+		int length = Math.max(0, lines.size() - 1);
+		for (byte[] line : lines) {
+			length += line.length;
+		}
+
+		byte[] body = new byte[length];
+
+		int position = 0;
+		for (int i = 0; i < lines.size(); ++i) {
+			if (i > 0) {
+				body[position++] = '\n';
+			}
+
+			byte[] line = lines.get(i);
+			System.arraycopy(line, 0, body, position, line.length);
+			position += line.length;
+		}
+
+		return body;
+	}
+
+	private URI getUri(WriteTarget target) {
+		URI uri = target.getUri();
+
 		if (uri == null) {
-			uri = URI.create(String.format("%s/write?db=%s",
-					influxDbDestination.getInfluxDbHost(), properties.getDbName()));
+			String database = target.getDatabase() != null ? target.getDatabase() : properties.getDbName();
+			String query = target.getRetentionPolicy() != null
+					? String.format("db=%s&rp=%s", database, target.getRetentionPolicy())
+					: String.format("db=%s", database);
+
+			String host = target.getHost() != null ? target.getHost() : influxDbDestination.getInfluxDbHost();
+			uri = URI.create(String.format("%s/write?%s", host, query));
+			target.setUri(uri);
 		}
 
 		return uri;
@@ -197,4 +467,24 @@ public class InfluxDBBatchSender {
 
 		return backOffPolicy;
 	}
+
+	/**
+	 * Thrown on a 5xx response so the batch is retried, and spooled once the retries run out
+	 */
+	private static final class ServerErrorException extends RuntimeException {
+
+		ServerErrorException(HttpStatus status) {
+			super("InfluxDB responded " + status, null, false, false);
+		}
+	}
+
+	/**
+	 * Thrown instead of making a request while the circuit breaker is open, without a stack trace
+	 */
+	private static final class CircuitOpenException extends RuntimeException {
+
+		CircuitOpenException(WriteTarget target) {
+			super("The circuit breaker of " + target + " is open", null, false, false);
+		}
+	}
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.ssl.SSLContexts;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The HTTP connections to InfluxDB. Connections are pooled and kept alive between batches, so TLS is
+ * negotiated once per connection rather than once per batch, and at most <tt>maxInFlightWrites</tt>
+ * write requests are outstanding at any time. Senders beyond that wait for a permit.
+ */
+@Service
+@Slf4j
+public class InfluxDBConnectionPool implements PublicMetrics {
+
+	private final NozzleProperties properties;
+
+	private final Semaphore permits;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private PoolingHttpClientConnectionManager connectionManager;
+
+	private CloseableHttpClient client;
+
+	@Autowired
+	public InfluxDBConnectionPool(NozzleProperties properties) {
+		this.properties = properties;
+
+		int maxInFlight = properties.getMaxInFlightWrites();
+		this.permits = maxInFlight > 0 ? new Semaphore(maxInFlight, true) : null;
+	}
+
+	@PostConstruct
+	public void postConstruct() throws Exception {
+		SSLContext sslContext = SSLContexts.createDefault();
+		if (properties.isSkipSslValidation()) {
+			TrustStrategy acceptingTrustStrategy = (X509Certificate[] chain, String authType) -> true;
+
+			sslContext = SSLContexts.custom()
+					.loadTrustMaterial(null, acceptingTrustStrategy)
+					.build();
+		}
+
+		// one SSLContext for every connection, so its session cache lets new connections resume TLS sessions
+		Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", new SSLConnectionSocketFactory(sslContext))
+				.build();
+
+		long keepAlive = properties.getHttpKeepAlive();
+
+		connectionManager = new PoolingHttpClientConnectionManager(registry, null, null, null,
+				keepAlive, TimeUnit.MILLISECONDS);
+		connectionManager.setMaxTotal(properties.getMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(properties.getMaxConnections());
+		connectionManager.setValidateAfterInactivity(2000);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(properties.getConnectTimeout())
+				.setConnectionRequestTimeout(properties.getConnectTimeout())
+				.setSocketTimeout(properties.getSocketTimeout())
+				.build();
+
+		ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+			long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+		};
+
+		// connection state is disabled so that TLS connections, which carry the peer principal as their
+		// state, can be handed to any thread instead of only the one that opened them
+		client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(keepAliveStrategy)
+				.disableConnectionState()
+				.evictExpiredConnections()
+				.evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+				.build();
+
+		log.info("InfluxDB connection pool of {} connections, {} in-flight writes", properties.getMaxConnections(),
+				permits != null ? properties.getMaxInFlightWrites() : "unlimited");
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		if (client != null) {
+			client.close();
+		}
+	}
+
+	public ClientHttpRequestFactory getRequestFactory() {
+		return new HttpComponentsClientHttpRequestFactory(client);
+	}
+
+	/**
+	 * Wait for an in-flight write permit
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void acquire() throws InterruptedException {
+		if (permits != null) {
+			permits.acquire();
+		}
+
+		inFlight.incrementAndGet();
+	}
+
+	public void release() {
+		inFlight.decrementAndGet();
+
+		if (permits != null) {
+			permits.release();
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>(6);
+		metrics.add(new Metric<>("writes.inflight", inFlight.get()));
+		metrics.add(new Metric<>("writes.queued", permits != null ? permits.getQueueLength() : 0));
+
+		if (connectionManager != null) {
+			PoolStats stats = connectionManager.getTotalStats();
+			metrics.add(new Metric<>("http.pool.leased", stats.getLeased()));
+			metrics.add(new Metric<>("http.pool.available", stats.getAvailable()));
+			metrics.add(new Metric<>("http.pool.pending", stats.getPending()));
+			metrics.add(new Metric<>("http.pool.max", stats.getMax()));
+		}
+
+		return metrics;
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.EventType;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drops the points of the least important event types while their {@link WriteTarget} struggles, so the
+ * spool and the buffers are left to the events that matter.
+ *
+ * The event types are listed in the order they are shed. While the target's {@link CircuitBreaker} is
+ * degraded, the first type is shed. While it is open or probing, every listed type is. Types that are not
+ * listed are never shed, they are spooled or retried as before.
+ *
+ * Only points written as they are can be shed. Points written by an aggregation when its window closes
+ * are few and always kept.
+ */
+@Slf4j
+public class LoadShedder implements PublicMetrics {
+
+	// the position of each type in the shedding order, types not in it are missing
+	private final Map<EventType, Integer> ranks = new EnumMap<>(EventType.class);
+
+	private final Map<EventType, LongAdder> shed = new EnumMap<>(EventType.class);
+
+	private final List<WriteTarget> targets;
+
+	/**
+	 * @param order   the event types to shed, the first one first
+	 * @param targets the write targets, as indexed by the {@link WriteRouter}
+	 */
+	public LoadShedder(List<EventType> order, List<WriteTarget> targets) {
+		for (EventType eventType : order) {
+			if (!ranks.containsKey(eventType)) {
+				ranks.put(eventType, ranks.size());
+				shed.put(eventType, new LongAdder());
+			}
+		}
+
+		this.targets = targets;
+
+		if (isEnabled()) {
+			log.info("Shedding {} in that order while InfluxDB is degraded", ranks.keySet());
+		}
+	}
+
+	public boolean isEnabled() {
+		return !ranks.isEmpty();
+	}
+
+	/**
+	 * @param target    the index of the point's target
+	 * @param eventType the type of the point's event
+	 * @return true if the point should be dropped, it is counted as shed
+	 */
+	public boolean shed(int target, EventType eventType) {
+		Integer rank = ranks.get(eventType);
+		if (rank == null) {
+			return false;
+		}
+
+		// no breaker yet, nothing was written to the target
+		CircuitBreaker breaker = targets.get(target).getCircuitBreaker();
+		if (breaker == null || !breaker.isDegraded()) {
+			return false;
+		}
+
+		if (rank > 0 && breaker.getState() == CircuitBreaker.State.closed) {
+			return false;
+		}
+
+		shed.get(eventType).increment();
+		return true;
+	}
+
+	/**
+	 * The points shed per event type, and the state of each target's circuit breaker
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>(shed.size() + targets.size() * 3);
+
+		for (Map.Entry<EventType, LongAdder> entry : shed.entrySet()) {
+			metrics.add(new Metric<>("events.shed." + entry.getKey(), entry.getValue().sum()));
+		}
+
+		for (WriteTarget target : targets) {
+			CircuitBreaker breaker = target.getCircuitBreaker();
+			if (breaker == null) {
+				continue;
+			}
+
+			String prefix = "targets." + target.getName() + ".breaker.";
+			metrics.add(new Metric<>(prefix + "state", breaker.getState().ordinal()));
+			metrics.add(new Metric<>(prefix + "opened", breaker.getOpened()));
+			metrics.add(new Metric<>(prefix + "rejected", breaker.getRejected()));
+		}
+
+		return metrics;
+	}
+}
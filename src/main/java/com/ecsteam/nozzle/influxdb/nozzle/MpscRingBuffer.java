@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free multi-producer / single-consumer queue.
+ *
+ * Producers claim a slot by advancing the producer index with a CAS and then publish the element into
+ * it. The single consumer takes elements in claim order, clearing each slot before advancing the
+ * consumer index, which is what frees the slot for producers again. Neither side ever blocks.
+ *
+ * Any thread may call {@link #offer(Object)}. Only one thread at a time may call {@link #poll()} or
+ * {@link #drainTo(Collection, int)}.
+ *
+ * @param <E> the element type
+ */
+public class MpscRingBuffer<E> {
+
+	private final AtomicReferenceArray<E> slots;
+	private final int mask;
+
+	private final AtomicLong producerIndex = new AtomicLong();
+	private final AtomicLong consumerIndex = new AtomicLong();
+
+	/**
+	 * @param capacity the max number of elements, rounded up to the next power of two
+	 */
+	public MpscRingBuffer(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Capacity must be between 1 and 2^30, was " + capacity);
+		}
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+
+		this.slots = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Add an element if there is room
+	 *
+	 * @param element the element, not null
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(E element) {
+		if (element == null) {
+			throw new NullPointerException("Null elements are not supported");
+		}
+
+		long index;
+		do {
+			index = producerIndex.get();
+
+			if (index - consumerIndex.get() > mask) {
+				return false;
+			}
+		} while (!producerIndex.compareAndSet(index, index + 1));
+
+		slots.lazySet((int) index & mask, element);
+		return true;
+	}
+
+	/**
+	 * Take the oldest element. Consumer thread only.
+	 *
+	 * @return the element, or null if the buffer is empty or the next element is still being published
+	 */
+	public E poll() {
+		long index = consumerIndex.get();
+		int slot = (int) index & mask;
+
+		E element = slots.get(slot);
+		if (element == null) {
+			return null;
+		}
+
+		slots.lazySet(slot, null);
+		consumerIndex.lazySet(index + 1);
+
+		return element;
+	}
+
+	/**
+	 * Move up to <tt>limit</tt> elements, oldest first, into the target. Consumer thread only.
+	 *
+	 * @param target where to put the elements
+	 * @param limit  the max number of elements to move
+	 * @return the number of elements moved
+	 */
+	public int drainTo(Collection<? super E> target, int limit) {
+		int drained = 0;
+
+		E element;
+		while (drained < limit && (element = poll()) != null) {
+			target.add(element);
+			++drained;
+		}
+
+		return drained;
+	}
+
+	/**
+	 * @return the number of claimed slots, which may include elements that are still being published
+	 */
+	public int size() {
+		long size = producerIndex.get() - consumerIndex.get();
+		return (int) Math.max(0, Math.min(size, capacity()));
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+}
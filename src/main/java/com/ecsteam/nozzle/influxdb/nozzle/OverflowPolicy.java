@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+/**
+ * What to do with firehose events while the envelope buffer is full
+ */
+public enum OverflowPolicy {
+	/**
+	 * Drop the oldest buffered envelope to make room
+	 */
+	dropOldest,
+
+	/**
+	 * Drop the envelope that just arrived
+	 */
+	dropNewest,
+
+	/**
+	 * Stop reading from the firehose until there is room. Doppler will drop events for us and may
+	 * flag the nozzle as a slow consumer.
+	 */
+	block
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.Data;
+import org.cloudfoundry.doppler.EventType;
+
+/**
+ * Sends the events it matches to a database and retention policy other than the default. A rule matches
+ * an event if every criterion it sets matches, criteria left out match anything.
+ */
+@Data
+public class RoutingRule {
+
+	private EventType eventType;
+
+	private String origin;
+
+	/**
+	 * The ValueMetric or CounterEvent name, either exact or a prefix followed by <tt>*</tt>
+	 */
+	private String name;
+
+	/**
+	 * The target database, the default one if not set
+	 */
+	private String database;
+
+	/**
+	 * The target retention policy, the database's default if not set
+	 */
+	private String retentionPolicy;
+
+	boolean matches(EventType eventType, String origin, String name) {
+		if (this.eventType != null && this.eventType != eventType) {
+			return false;
+		}
+
+		if (this.origin != null && !this.origin.equals(origin)) {
+			return false;
+		}
+
+		if (this.name != null) {
+			if (name == null) {
+				return false;
+			}
+
+			if (this.name.endsWith("*")) {
+				return name.regionMatches(0, this.name, 0, this.name.length() - 1);
+			}
+
+			return this.name.equals(name);
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.lineprotocol.LineProtocolEncoder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.SmartLifecycle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Folds the events of each series into one record per time window, and writes one point per series when
+ * the window closes, instead of one point per event.
+ *
+ * A series is identified by its encoded measurement and tags, the prefix the serializer has just written,
+ * plus an id for anything else the subclass splits series on. The serializer thread locks the series
+ * record, updates it and unlocks it. Every <tt>window</tt> millis, aligned to the clock, a scheduler
+ * thread writes the point of every series that saw an event, with the window start as its timestamp, and
+ * resets the record. A series with no event in a whole window is dropped, so only active series are held.
+ *
+ * At most <tt>maxSeries</tt> series are tracked. Events of any other series are written as they are.
+ *
+ * @param <S> the per series record
+ */
+@Slf4j
+public abstract class SeriesAggregator<S extends SeriesAggregator.Series> implements Runnable, SmartLifecycle, PublicMetrics {
+
+	private final String name;
+
+	@Getter
+	private final long window;
+
+	private final int maxSeries;
+
+	private final BatchedEventListener batcher;
+
+	private final ConcurrentHashMap<Key, S> series = new ConcurrentHashMap<>();
+
+	private final ThreadLocal<Key> probes = ThreadLocal.withInitial(Key::new);
+
+	// scheduler thread only
+	private final LineProtocolEncoder encoder;
+
+	private final LongAdder aggregated = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder emitted = new LongAdder();
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param name          used for the thread and metric names
+	 * @param window        the window length in millis, 0 disables the aggregation
+	 * @param maxSeries     the max number of series tracked at once
+	 * @param batcher       where the points are written when a window closes
+	 * @param integerFields whether integer fields are written as InfluxDB integers
+	 */
+	protected SeriesAggregator(String name, long window, int maxSeries, BatchedEventListener batcher,
+							   boolean integerFields) {
+		this.name = name;
+		this.window = window;
+		this.maxSeries = maxSeries;
+		this.batcher = batcher;
+		this.encoder = new LineProtocolEncoder(integerFields);
+	}
+
+	public boolean isEnabled() {
+		return window > 0;
+	}
+
+	/**
+	 * Find or start the record of the series whose prefix is in the encoder, and lock it. The caller
+	 * updates the record and then calls {@link #unlock(Series)}.
+	 *
+	 * @param prefix the encoder holding the series prefix, and nothing after it
+	 * @param id     anything else the series is split on, written by {@link #writeTags}
+	 * @param target the index of the series' {@link WriteTarget}, the same for every event of the series
+	 * @return the locked record, or null if too many series are tracked and the event should be written as is
+	 */
+	protected final S lock(LineProtocolEncoder prefix, long id, int target) {
+		Key probe = probes.get().set(prefix.buffer(), prefix.length(), id);
+
+		for (;;) {
+			S record = series.get(probe);
+
+			if (record == null) {
+				if (series.size() >= maxSeries) {
+					rejected.increment();
+					return null;
+				}
+
+				S created = newSeries(id);
+				created.target = target;
+				record = series.putIfAbsent(probe.copy(), created);
+				if (record == null) {
+					record = created;
+				}
+			}
+
+			record.lock.lock();
+			if (!record.retired) {
+				aggregated.increment();
+				return record;
+			}
+
+			// dropped by the scheduler since it was looked up, start a new one
+			record.lock.unlock();
+		}
+	}
+
+	protected final void unlock(S record) {
+		record.lock.unlock();
+	}
+
+	/**
+	 * @param id the id the series was locked with
+	 * @return an empty record
+	 */
+	protected abstract S newSeries(long id);
+
+	/**
+	 * Write any tags beyond the series prefix. Called with the record locked.
+	 */
+	protected void writeTags(S record, LineProtocolEncoder encoder) {
+	}
+
+	/**
+	 * Write the fields of the window's point, and reset the record for the next window. Called with the
+	 * record locked, and only if it is not {@link Series#isEmpty() empty}.
+	 */
+	protected abstract void writeFields(S record, LineProtocolEncoder encoder);
+
+	/**
+	 * Close the window that just ended
+	 */
+	@Override
+	public void run() {
+		try {
+			// the scheduler fires on the boundary, give or take, so round to the nearest one
+			long now = System.currentTimeMillis();
+			closeWindow((Math.round((double) now / window) - 1) * window);
+		} catch (RuntimeException e) {
+			log.error("Could not close the {} window", name, e);
+		}
+	}
+
+	/**
+	 * Write a point for every series with events, and drop the series without
+	 *
+	 * @param windowStart the timestamp of the points, epoch millis
+	 */
+	void closeWindow(long windowStart) {
+		long timestamp = TimeUnit.MILLISECONDS.toNanos(windowStart);
+
+		Iterator<Map.Entry<Key, S>> entries = series.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Key, S> entry = entries.next();
+			S record = entry.getValue();
+
+			record.lock.lock();
+			try {
+				if (record.isEmpty()) {
+					record.retired = true;
+					entries.remove();
+					continue;
+				}
+
+				encoder.reset().prefix(entry.getKey().bytes);
+				writeTags(record, encoder);
+				writeFields(record, encoder);
+			} finally {
+				record.lock.unlock();
+			}
+
+			if (encoder.hasFields()) {
+				emit(encoder.timestamp(timestamp).toByteArray(), record.target, entry.getKey().hashCode());
+				emitted.increment();
+			}
+		}
+	}
+
+	/**
+	 * Hand a closed window's point to the batcher
+	 */
+	void emit(byte[] point, int target, int hash) {
+		if (!batcher.put(target, Math.floorMod(hash, batcher.getShards()), point)) {
+			log.debug("Batcher is stopped or full, dropping {} point", name);
+		}
+	}
+
+	public int size() {
+		return series.size();
+	}
+
+	@Override
+	public void start() {
+		if (!isEnabled() || scheduler != null) {
+			return;
+		}
+
+		log.info("Aggregating {} in {} ms windows, up to {} series", name, window, maxSeries);
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "influxdb-" + name);
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		long now = System.currentTimeMillis();
+		scheduler.scheduleAtFixedRate(this, window - now % window, window, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop closing windows, and write the current, partial, window so nothing is lost
+	 */
+	@Override
+	public void stop() {
+		if (scheduler == null) {
+			return;
+		}
+
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(window, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		scheduler = null;
+
+		long now = System.currentTimeMillis();
+		closeWindow(now - now % window);
+	}
+
+	@Override
+	public boolean isAutoStartup() {
+		return true;
+	}
+
+	@Override
+	public void stop(Runnable callback) {
+		stop();
+		callback.run();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return scheduler != null;
+	}
+
+	/**
+	 * Stops after the {@link FirehoseReader} and before the {@link BatchedEventListener}, so the last window
+	 * can still be written
+	 */
+	@Override
+	public int getPhase() {
+		return -25;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>(4);
+		metrics.add(new Metric<>(name + ".series", series.size()));
+		metrics.add(new Metric<>(name + ".aggregated", aggregated.sum()));
+		metrics.add(new Metric<>(name + ".emitted", emitted.sum()));
+		metrics.add(new Metric<>(name + ".rejected", rejected.sum()));
+
+		return metrics;
+	}
+
+	/**
+	 * The record of one series. Subclasses add the state they aggregate.
+	 */
+	public abstract static class Series {
+
+		final ReentrantLock lock = new ReentrantLock();
+
+		// set once the series has been dropped, under the lock
+		boolean retired;
+
+		// where the series' points are written
+		int target;
+
+		/**
+		 * @return true if nothing was recorded since the last window closed
+		 */
+		protected abstract boolean isEmpty();
+	}
+
+	/**
+	 * A series prefix and id. Probes point into the serializer's encoder buffer and are reused, the keys in
+	 * the map own a copy of exactly the prefix bytes.
+	 */
+	static final class Key {
+
+		private byte[] bytes;
+		private int length;
+		private long id;
+
+		private int hash;
+
+		Key set(byte[] bytes, int length, long id) {
+			this.bytes = bytes;
+			this.length = length;
+			this.id = id;
+
+			int h = 1;
+			for (int i = 0; i < length; ++i) {
+				h = 31 * h + bytes[i];
+			}
+			this.hash = 31 * h + Long.hashCode(id);
+
+			return this;
+		}
+
+		Key copy() {
+			return new Key().set(Arrays.copyOf(bytes, length), length, id);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+
+			if (!(o instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key) o;
+			if (hash != other.hash || length != other.length || id != other.id) {
+				return false;
+			}
+
+			for (int i = 0; i < length; ++i) {
+				if (bytes[i] != other.bytes[i]) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+}
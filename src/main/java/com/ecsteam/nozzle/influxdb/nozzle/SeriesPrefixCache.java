@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.EventType;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the encoded <tt>origin.metric,tag=value,...</tt> prefix of every series seen recently, so only
+ * the fields and timestamp have to be encoded per event.
+ *
+ * The cache is bounded. Once it is full, roughly a tenth of the entries are evicted to make room. When
+ * the app, space or org names in the AppDataCache change, the prefixes of the changed apps are dropped,
+ * or the whole cache after a full refresh.
+ */
+@Slf4j
+public class SeriesPrefixCache implements PublicMetrics {
+
+	private final int maxSize;
+
+	private final ConcurrentHashMap<Key, byte[]> prefixes;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	private final AtomicLong generation = new AtomicLong();
+
+	public SeriesPrefixCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.prefixes = new ConcurrentHashMap<>(Math.max(16, Math.min(maxSize, 1 << 16)));
+	}
+
+	/**
+	 * @param key the series identity, may be a reused probe
+	 * @return the encoded prefix, or null if it has to be encoded
+	 */
+	public byte[] get(Key key) {
+		byte[] prefix = prefixes.get(key);
+
+		if (prefix != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
+
+		return prefix;
+	}
+
+	/**
+	 * @return the current generation, to be read before encoding a prefix that will be cached
+	 */
+	public long generation() {
+		return generation.get();
+	}
+
+	/**
+	 * Cache an encoded prefix. The key is copied, so a probe can keep being reused by the caller.
+	 *
+	 * @param key        the series identity
+	 * @param prefix     the encoded measurement and tags
+	 * @param generation the generation read before the prefix was encoded. If the cache has been
+	 *                   invalidated since, the prefix may be stale and is not kept.
+	 */
+	public void put(Key key, byte[] prefix, long generation) {
+		if (maxSize <= 0) {
+			return;
+		}
+
+		if (prefixes.mappingCount() >= maxSize) {
+			evict();
+		}
+
+		Key copy = key.copy();
+		prefixes.put(copy, prefix);
+
+		if (this.generation.get() != generation) {
+			prefixes.remove(copy, prefix);
+		}
+	}
+
+	/**
+	 * Drop every cached prefix, used when the enrichment data the tags are built from has changed
+	 */
+	public void invalidate() {
+		log.debug("Invalidating {} cached series prefixes", prefixes.mappingCount());
+		generation.incrementAndGet();
+		prefixes.clear();
+	}
+
+	/**
+	 * Drop the cached prefixes of some apps, used when their enrichment data has changed
+	 *
+	 * @param applicationIds the apps
+	 */
+	public void invalidate(Collection<String> applicationIds) {
+		if (applicationIds.isEmpty()) {
+			return;
+		}
+
+		log.debug("Invalidating the cached series prefixes of {} apps", applicationIds.size());
+		generation.incrementAndGet();
+		prefixes.keySet().removeIf(key -> key.applicationId != null && applicationIds.contains(key.applicationId));
+	}
+
+	public long size() {
+		return prefixes.mappingCount();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>(4);
+		metrics.add(new Metric<>("series.cache.hits", hits.sum()));
+		metrics.add(new Metric<>("series.cache.misses", misses.sum()));
+		metrics.add(new Metric<>("series.cache.evictions", evictions.sum()));
+		metrics.add(new Metric<>("series.cache.size", prefixes.mappingCount()));
+
+		return metrics;
+	}
+
+	private void evict() {
+		long toEvict = Math.max(1, maxSize / 10);
+
+		Iterator<Key> keys = prefixes.keySet().iterator();
+		while (toEvict-- > 0 && keys.hasNext()) {
+			keys.next();
+			keys.remove();
+			evictions.increment();
+		}
+	}
+
+	/**
+	 * Everything that ends up in a series prefix. Fields that are not tagged should be left null so that
+	 * they don't split the cache into needless entries.
+	 *
+	 * Instances are mutable so that one probe per thread can be reused for lookups.
+	 */
+	public static class Key {
+		private EventType eventType;
+		private String origin;
+		private String name;
+		private String deployment;
+		private String job;
+		private String index;
+		private String ip;
+		private Map<String, String> tags;
+		private String applicationId;
+
+		private int hash;
+
+		public Key set(EventType eventType, String origin, String name, String deployment, String job,
+					   String index, String ip, Map<String, String> tags, String applicationId) {
+			this.eventType = eventType;
+			this.origin = origin;
+			this.name = name;
+			this.deployment = deployment;
+			this.job = job;
+			this.index = index;
+			this.ip = ip;
+			this.tags = tags;
+			this.applicationId = applicationId;
+
+			int h = Objects.hashCode(eventType);
+			h = 31 * h + Objects.hashCode(origin);
+			h = 31 * h + Objects.hashCode(name);
+			h = 31 * h + Objects.hashCode(deployment);
+			h = 31 * h + Objects.hashCode(job);
+			h = 31 * h + Objects.hashCode(index);
+			h = 31 * h + Objects.hashCode(ip);
+			h = 31 * h + Objects.hashCode(tags);
+			h = 31 * h + Objects.hashCode(applicationId);
+			this.hash = h;
+
+			return this;
+		}
+
+		Key copy() {
+			return new Key().set(eventType, origin, name, deployment, job, index, ip, tags, applicationId);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+
+			if (!(o instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key) o;
+			return hash == other.hash
+					&& eventType == other.eventType
+					&& Objects.equals(name, other.name)
+					&& Objects.equals(origin, other.origin)
+					&& Objects.equals(applicationId, other.applicationId)
+					&& Objects.equals(ip, other.ip)
+					&& Objects.equals(index, other.index)
+					&& Objects.equals(job, other.job)
+					&& Objects.equals(deployment, other.deployment)
+					&& Objects.equals(tags, other.tags);
+		}
+	}
+}
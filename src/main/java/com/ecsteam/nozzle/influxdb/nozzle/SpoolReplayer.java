@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.SmartLifecycle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replays spooled batches to InfluxDB, oldest first, at no more than <tt>replayRate</tt> batches per
+ * second so that catching up does not compete with live traffic. Each replay doubles as a health probe:
+ * while InfluxDB is down, the replayer backs off between attempts, and the first successful replay marks
+ * the destination healthy again.
+ */
+@Slf4j
+public class SpoolReplayer implements Runnable, SmartLifecycle, PublicMetrics {
+
+	private static final long IDLE_MILLIS = 1000;
+
+	private final BatchSpool spool;
+	private final InfluxDBBatchSender sender;
+
+	// null for the sender's default target
+	@Getter
+	private final WriteTarget target;
+	private final long replayIntervalNanos;
+	private final long minBackoff;
+	private final long maxBackoff;
+
+	private final LongAdder replayed = new LongAdder();
+
+	private volatile double replayRate;
+
+	private volatile Thread thread;
+
+	/**
+	 * @param replayRate the max number of batches replayed per second
+	 * @param minBackoff the wait in ms after the first failed replay
+	 * @param maxBackoff the max wait in ms between failed replays
+	 */
+	public SpoolReplayer(BatchSpool spool, InfluxDBBatchSender sender, int replayRate, long minBackoff,
+						 long maxBackoff) {
+		this(spool, sender, null, replayRate, minBackoff, maxBackoff);
+	}
+
+	/**
+	 * @param target     the target the spooled batches are replayed to
+	 * @param replayRate the max number of batches replayed per second
+	 * @param minBackoff the wait in ms after the first failed replay
+	 * @param maxBackoff the max wait in ms between failed replays
+	 */
+	public SpoolReplayer(BatchSpool spool, InfluxDBBatchSender sender, WriteTarget target, int replayRate,
+						 long minBackoff, long maxBackoff) {
+		this.spool = spool;
+		this.sender = sender;
+		this.target = target;
+		this.replayIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, replayRate);
+		this.minBackoff = Math.max(1, minBackoff);
+		this.maxBackoff = Math.max(this.minBackoff, maxBackoff);
+	}
+
+	@Override
+	public void run() {
+		long backoff = minBackoff;
+
+		long windowStart = System.nanoTime();
+		long windowCount = 0;
+
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				long now = System.nanoTime();
+				if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+					replayRate = windowCount * (double) TimeUnit.SECONDS.toNanos(1) / (now - windowStart);
+					windowStart = now;
+					windowCount = 0;
+				}
+
+				BatchSpool.Batch batch = spool.peek();
+				if (batch == null) {
+					Thread.sleep(IDLE_MILLIS);
+					continue;
+				}
+
+				byte[] body = batch.getBody();
+				if (target != null ? sender.write(target, body) : sender.write(body)) {
+					spool.advance(batch);
+					replayed.increment();
+					++windowCount;
+					backoff = minBackoff;
+
+					if (spool.depth() == 0) {
+						log.info("Spool replayed, InfluxDB has caught up{}", target != null ? " on " + target : "");
+					}
+
+					TimeUnit.NANOSECONDS.sleep(replayIntervalNanos);
+				} else {
+					log.debug("Replay failed, retrying in {} ms with {} batches spooled", backoff, spool.depth());
+
+					Thread.sleep(backoff);
+					backoff = Math.min(backoff * 2, maxBackoff);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public boolean isAutoStartup() {
+		return true;
+	}
+
+	@Override
+	public void stop(Runnable callback) {
+		stop();
+		callback.run();
+	}
+
+	@Override
+	public void start() {
+		if (!spool.isEnabled()) {
+			return;
+		}
+
+		Thread thread = new Thread(this, target != null ? "influxdb-spool-replay-" + target : "influxdb-spool-replay");
+		thread.setDaemon(true);
+		thread.start();
+
+		this.thread = thread;
+	}
+
+	@Override
+	public void stop() {
+		Thread thread = this.thread;
+		if (thread != null) {
+			thread.interrupt();
+			this.thread = null;
+		}
+
+		spool.close();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return thread != null;
+	}
+
+	@Override
+	public int getPhase() {
+		return -50;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>(2);
+		metrics.add(new Metric<>("spool.replayed", replayed.sum()));
+		metrics.add(new Metric<>("spool.replay.rate", replayRate));
+
+		return metrics;
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.SmartLifecycle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Picks the {@link WriteTarget} of each event from a list of {@link RoutingRule}s, the first rule that
+ * matches wins. Events no rule matches go to the default target, the configured database.
+ *
+ * Each target has its own buffers and pending batch limit in the {@link BatchedEventListener}, and its own
+ * health and spool in the {@link InfluxDBBatchSender}, so a slow or failing target does not hold up the
+ * others. The router starts and stops the replayers of the routed targets' spools, the default target's
+ * spool is replayed by the {@link SpoolReplayer} bean as before.
+ *
+ * With more than one InfluxDB endpoint, every route has a target per endpoint, and each series goes to
+ * the endpoint the {@link ConsistentHashRing} picks for its series key. The target of route <tt>r</tt> on
+ * endpoint <tt>e</tt> is at index <tt>r * endpoints + e</tt>, and is named after the route and the endpoint's
+ * host and port.
+ */
+@Slf4j
+public class WriteRouter implements SmartLifecycle, PublicMetrics {
+
+	private final List<WriteTarget> targets = new ArrayList<>();
+
+	private final WriteTarget defaultTarget;
+
+	private final ConsistentHashRing ring;
+
+	private final RoutingRule[] rules;
+
+	// the target index of each rule
+	private final int[] ruleTargets;
+
+	private final List<SpoolReplayer> replayers = new ArrayList<>();
+
+	private volatile boolean running;
+
+	/**
+	 * @param rules         the rules, in order
+	 * @param defaultTarget where events no rule matches are written
+	 */
+	public WriteRouter(List<RoutingRule> rules, WriteTarget defaultTarget) {
+		this(rules, defaultTarget, Collections.emptyList());
+	}
+
+	/**
+	 * @param rules         the rules, in order
+	 * @param defaultTarget where events no rule matches are written, if there is at most one endpoint
+	 * @param endpoints     the InfluxDB URLs series are spread over, at most one writes everything to the
+	 *                      MetricsDestination's host
+	 */
+	public WriteRouter(List<RoutingRule> rules, WriteTarget defaultTarget, List<String> endpoints) {
+		this.rules = rules.toArray(new RoutingRule[0]);
+		this.ruleTargets = new int[this.rules.length];
+		this.defaultTarget = defaultTarget;
+
+		List<WriteTarget> routes = new ArrayList<>();
+		routes.add(defaultTarget);
+
+		// rules sending to the same database and retention policy share a target
+		Map<String, Integer> indexes = new LinkedHashMap<>();
+		for (int i = 0; i < this.rules.length; ++i) {
+			RoutingRule rule = this.rules[i];
+			if (rule.getDatabase() == null && rule.getRetentionPolicy() == null) {
+				ruleTargets[i] = 0;
+				continue;
+			}
+
+			String name = (rule.getDatabase() != null ? rule.getDatabase() : "default")
+					+ (rule.getRetentionPolicy() != null ? "." + rule.getRetentionPolicy() : "");
+
+			Integer index = indexes.get(name);
+			if (index == null) {
+				index = routes.size();
+				indexes.put(name, index);
+				routes.add(new WriteTarget(name, rule.getDatabase(), rule.getRetentionPolicy()));
+			}
+
+			ruleTargets[i] = index;
+			log.info("Routing {} to {}", rule, name);
+		}
+
+		if (endpoints.size() <= 1) {
+			this.ring = null;
+			targets.addAll(routes);
+			return;
+		}
+
+		// named after the endpoint, so a target keeps its spool when the endpoint list is reordered
+		List<String> shards = new ArrayList<>(endpoints.size());
+		for (String endpoint : endpoints) {
+			String shard = shardName(endpoint);
+			if (shards.contains(shard)) {
+				throw new IllegalArgumentException("Two InfluxDB endpoints are both named " + shard);
+			}
+			shards.add(shard);
+		}
+
+		this.ring = new ConsistentHashRing(endpoints);
+		for (WriteTarget route : routes) {
+			for (int e = 0; e < endpoints.size(); ++e) {
+				targets.add(new WriteTarget(route.getName() + "." + shards.get(e), route.getDatabase(),
+						route.getRetentionPolicy(), endpoints.get(e)));
+			}
+		}
+
+		for (int e = 0; e < endpoints.size(); ++e) {
+			log.info("Sharding series to {} at {}", shards.get(e), endpoints.get(e));
+		}
+	}
+
+	/**
+	 * @param endpoint an InfluxDB URL
+	 * @return its host and port, safe to use as a directory name, <tt>influx-0_8086</tt> for
+	 * <tt>http://influx-0:8086/</tt>
+	 */
+	static String shardName(String endpoint) {
+		String name = endpoint.replaceFirst("^[A-Za-z][A-Za-z0-9+.-]*://", "").replaceAll("/+$", "");
+		return name.replaceAll("[^A-Za-z0-9.-]", "_");
+	}
+
+	/**
+	 * @return the targets, the default route's first
+	 */
+	public List<WriteTarget> getTargets() {
+		return Collections.unmodifiableList(targets);
+	}
+
+	/**
+	 * @return the number of endpoints series are spread over
+	 */
+	public int getEndpoints() {
+		return ring != null ? ring.size() : 1;
+	}
+
+	/**
+	 * @param envelope The event from the Firehose
+	 * @param series   the buffer holding the event's series key
+	 * @param length   the length of the series key
+	 * @return the index of the event's target in {@link #getTargets()}
+	 */
+	public int route(Envelope envelope, byte[] series, int length) {
+		int route = route(envelope);
+		return ring != null ? route * ring.size() + ring.endpointOf(series, length) : route;
+	}
+
+	/**
+	 * @param envelope The event from the Firehose
+	 * @return the index of the event's route, which is its target index if there is only one endpoint
+	 */
+	public int route(Envelope envelope) {
+		if (rules.length == 0) {
+			return 0;
+		}
+
+		EventType eventType = envelope.getEventType();
+
+		String name = null;
+		if (eventType == EventType.VALUE_METRIC && envelope.getValueMetric() != null) {
+			name = envelope.getValueMetric().getName();
+		} else if (eventType == EventType.COUNTER_EVENT && envelope.getCounterEvent() != null) {
+			name = envelope.getCounterEvent().getName();
+		}
+
+		for (int i = 0; i < rules.length; ++i) {
+			if (rules[i].matches(eventType, envelope.getOrigin(), name)) {
+				return ruleTargets[i];
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Replay the spool of a routed target while the router runs
+	 */
+	public void addReplayer(SpoolReplayer replayer) {
+		replayers.add(replayer);
+	}
+
+	@Override
+	public boolean isAutoStartup() {
+		return true;
+	}
+
+	@Override
+	public void stop(Runnable callback) {
+		stop();
+		callback.run();
+	}
+
+	@Override
+	public void start() {
+		replayers.forEach(SpoolReplayer::start);
+		running = true;
+	}
+
+	@Override
+	public void stop() {
+		replayers.forEach(SpoolReplayer::stop);
+		running = false;
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public int getPhase() {
+		return -50;
+	}
+
+	/**
+	 * The health and spool of each routed or sharded target, the default target's are published as they were
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+
+		for (WriteTarget target : targets) {
+			if (target == defaultTarget) {
+				continue;
+			}
+
+			String prefix = "targets." + target.getName() + ".";
+			metrics.add(new Metric<>(prefix + "healthy", target.isHealthy() ? 1 : 0));
+
+			if (target.getSpool() != null) {
+				for (Metric<?> metric : target.getSpool().metrics()) {
+					metrics.add(new Metric<Number>(prefix + metric.getName(), metric.getValue()));
+				}
+			}
+		}
+
+		for (SpoolReplayer replayer : replayers) {
+			String prefix = "targets." + Objects.toString(replayer.getTarget()) + ".";
+			for (Metric<?> metric : replayer.metrics()) {
+				metrics.add(new Metric<Number>(prefix + metric.getName(), metric.getValue()));
+			}
+		}
+
+		return metrics;
+	}
+}
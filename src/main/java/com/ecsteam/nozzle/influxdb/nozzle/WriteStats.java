@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of the write requests the {@link InfluxDBBatchSender} made: how many, how many failed and
+ * how long they took. Readers take the difference between two reads to look at an interval.
+ */
+public class WriteStats {
+
+	private final LongAdder writes = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder nanos = new LongAdder();
+
+	/**
+	 * @param nanos  how long the request took, from sending it to the response or error
+	 * @param failed whether it failed, a connection error or a 5xx response
+	 */
+	void record(long nanos, boolean failed) {
+		this.writes.increment();
+		this.nanos.add(nanos);
+
+		if (failed) {
+			this.failures.increment();
+		}
+	}
+
+	public long getWrites() {
+		return writes.sum();
+	}
+
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	public long getNanos() {
+		return nanos.sum();
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.net.URI;
+
+/**
+ * A database and retention policy points are written to, on one InfluxDB endpoint, with the state the
+ * sender keeps for it: its health, its circuit breaker and the spool its failed batches go to.
+ */
+@Getter
+public class WriteTarget {
+
+	private final String name;
+
+	// null for the configured dbName
+	private final String database;
+
+	// null for the database's default retention policy
+	private final String retentionPolicy;
+
+	// null for the MetricsDestination's host
+	private final String host;
+
+	@Setter
+	private volatile BatchSpool spool;
+
+	@Setter(AccessLevel.PACKAGE)
+	private volatile boolean healthy = true;
+
+	// created by the sender with its first request
+	@Setter(AccessLevel.PACKAGE)
+	private volatile CircuitBreaker circuitBreaker;
+
+	@Getter(AccessLevel.PACKAGE)
+	@Setter(AccessLevel.PACKAGE)
+	private volatile URI uri;
+
+	public WriteTarget(String name, String database, String retentionPolicy) {
+		this(name, database, retentionPolicy, null);
+	}
+
+	public WriteTarget(String name, String database, String retentionPolicy, String host) {
+		this.name = name;
+		this.database = database;
+		this.retentionPolicy = retentionPolicy;
+		this.host = host;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -16,12 +16,18 @@
 
 package com.ecsteam.nozzle.influxdb.foundation;
 
+import com.ecsteam.nozzle.influxdb.lineprotocol.LineProtocolEncoder;
 import com.ecsteam.nozzle.influxdb.util.TestCloudFoundryClient;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -58,4 +64,80 @@ public class AppDataCacheTests {
 		assertNull(data.get("spaceName"));
 		assertNull(data.get("organizationName"));
 	}
+
+	@Test
+	public void testApplication() {
+		TestCloudFoundryClient testCfClient = new TestCloudFoundryClient();
+
+		AppDataCache cache = new AppDataCache(testCfClient);
+		assertNull(cache.getApplication("app1234"));
+
+		cache.refreshCache();
+		assertEquals(4, cache.size());
+
+		AppData app = cache.getApplication("app3412");
+		assertEquals("App 3", app.getApplicationName());
+		assertEquals("spaceB", app.getSpaceId());
+
+		assertEquals(",spaceName=Space\\ B,organizationId=org2,spaceId=spaceB,organizationName=Org\\ 2"
+				+ ",applicationId=app3412,applicationName=App\\ 3", app.writeTags(new LineProtocolEncoder()).toString());
+
+		assertNull(cache.getApplication("badId"));
+		assertNull(cache.getApplication(null));
+	}
+
+	@Test
+	public void testLookupOnMiss() {
+		TestCloudFoundryClient testCfClient = new TestCloudFoundryClient();
+
+		AppDataCache cache = new AppDataCache(testCfClient);
+
+		AtomicInteger changes = new AtomicInteger(0);
+		List<Set<String>> changed = new ArrayList<>();
+		cache.addChangeListener(applicationIds -> {
+			changes.incrementAndGet();
+			changed.add(applicationIds);
+		});
+
+		// nothing is looked up before the first refresh
+		assertNull(cache.getApplication("app5678"));
+		assertEquals(0, testCfClient.applicationLookups.get());
+
+		cache.refreshCache();
+		int afterRefresh = changes.get();
+
+		// the miss returns right away, the lookup adds the app for the next event
+		assertNull(cache.getApplication("app5678"));
+		assertEquals(1, testCfClient.applicationLookups.get());
+		assertEquals(afterRefresh + 1, changes.get());
+		assertEquals(Collections.singleton("app5678"), changed.get(changed.size() - 1));
+
+		AppData app = cache.getApplication("app5678");
+		assertEquals("App 5", app.getApplicationName());
+		assertEquals("Space B", app.getSpaceName());
+		assertEquals("Org 2", app.getOrganizationName());
+		assertEquals(1, testCfClient.applicationLookups.get());
+
+		// an unknown app is looked up once, then remembered as unknown
+		assertNull(cache.getApplication("deleted"));
+		assertNull(cache.getApplication("deleted"));
+		assertEquals(2, testCfClient.applicationLookups.get());
+	}
+
+	@Test
+	public void testChangeListener() {
+		TestCloudFoundryClient testCfClient = new TestCloudFoundryClient();
+
+		AppDataCache cache = new AppDataCache(testCfClient);
+
+		AtomicInteger changes = new AtomicInteger(0);
+		cache.addChangeListener(applicationIds -> changes.incrementAndGet());
+
+		cache.refreshCache();
+		assertTrue("Listener was not notified of new app data", changes.get() > 0);
+
+		int afterFirstRefresh = changes.get();
+		cache.refreshCache();
+		assertEquals("Listener was notified without any change", afterFirstRefresh, changes.get());
+	}
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.foundation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class AppDataFileTests {
+
+	private File directory;
+
+	@Before
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("appdata").toFile();
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		try (Stream<Path> files = Files.walk(directory.toPath())) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		List<AppData> apps = Arrays.asList(
+				new AppData("app1234", "App 1", "spaceA", "Space A", "org1", "Org 1"),
+				new AppData("app2341", "App 2", "spaceA", "Space A", "org1", "Org 1"),
+				new AppData("app3412", "Äpp 3", "spaceB", "Space B", "org2", "Org 2"),
+				new AppData("app4123", null, null, null, null, null));
+
+		AppDataFile file = new AppDataFile(new File(directory, "nested/appdata"));
+		assertFalse(file.exists());
+
+		file.write(apps);
+		assertTrue(file.exists());
+
+		List<AppData> read = file.read();
+		assertEquals(apps, read);
+		assertEquals("Äpp 3", read.get(2).getApplicationName());
+		assertNull(read.get(3).getOrganizationName());
+	}
+
+	@Test
+	public void testReplace() throws IOException {
+		AppDataFile file = new AppDataFile(new File(directory, "appdata"));
+
+		file.write(Arrays.asList(new AppData("app1234", "App 1", "spaceA", "Space A", "org1", "Org 1")));
+		file.write(Arrays.asList(new AppData("app1234", "Renamed", "spaceA", "Space A", "org1", "Org 1")));
+
+		assertEquals("Renamed", file.read().get(0).getApplicationName());
+		assertEquals(1, directory.list().length);
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptFile() throws IOException {
+		AppDataFile file = new AppDataFile(new File(directory, "appdata"));
+		file.write(Arrays.asList(new AppData("app1234", "App 1", "spaceA", "Space A", "org1", "Org 1")));
+
+		try (RandomAccessFile raf = new RandomAccessFile(file.getFile(), "rw")) {
+			raf.seek(30);
+			raf.write('x');
+		}
+
+		file.read();
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.lineprotocol;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class LineProtocolEncoderTests {
+
+	@Test
+	public void testFullPoint() {
+		LineProtocolEncoder encoder = new LineProtocolEncoder(true);
+
+		encoder.reset()
+				.measurement("gorouter", "latency")
+				.tag("foundation", "prod")
+				.tag("eventType", "ValueMetric")
+				.field("value", 12.5)
+				.field("count", 42L)
+				.field("unit", "ms")
+				.timestamp(1490000000000000000L);
+
+		assertEquals("gorouter.latency,foundation=prod,eventType=ValueMetric value=12.5,count=42i,unit=\"ms\" 1490000000000000000",
+				encoder.toString());
+	}
+
+	@Test
+	public void testSkippedFields() {
+		LineProtocolEncoder encoder = new LineProtocolEncoder(true);
+
+		encoder.reset()
+				.measurement("test", "metric")
+				.field("missing", (Long) null)
+				.field("blank", "   ")
+				.field("empty", Collections.emptyList())
+				.field("value", -7L)
+				.timestamp(1L);
+
+		assertEquals("test.metric value=-7i 1", encoder.toString());
+	}
+
+	@Test
+	public void testNoFields() {
+		LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+		encoder.reset().measurement("test", "metric").field("unit", "");
+
+		assertFalse(encoder.hasFields());
+	}
+
+	@Test
+	public void testNumberFormatting() {
+		LineProtocolEncoder encoder = new LineProtocolEncoder(true);
+
+		double[] doubles = {1.0E-5, 0.001, 123456.789, -0.25, 1.0E20, Double.MAX_VALUE, Double.MIN_VALUE};
+		long[] longs = {0L, -1L, Long.MAX_VALUE, Long.MIN_VALUE, 1_000_000_007L};
+
+		for (double d : doubles) {
+			String line = encoder.reset().measurement("t", "m").field("f", d).toString();
+			assertEquals("t.m f=" + d, line);
+			assertEquals(d, Double.parseDouble(line.substring(6)), 0.0);
+		}
+
+		for (long l : longs) {
+			assertEquals("t.m f=" + l + "i", encoder.reset().measurement("t", "m").field("f", l).toString());
+		}
+
+		// whole doubles take the integer formatter, but stay floats
+		assertEquals("t.m f=1024", encoder.reset().measurement("t", "m").field("f", 1024.0).toString());
+		assertEquals("t.m f=10000000", encoder.reset().measurement("t", "m").field("f", 1.0E7).toString());
+		assertEquals("t.m f=-3", encoder.reset().measurement("t", "m").field("f", -3.0).toString());
+
+		// so does negative zero, which loses its sign. It compares equal to 0 anyway.
+		assertEquals("t.m f=0", encoder.reset().measurement("t", "m").field("f", -0.0).toString());
+
+		assertEquals("t.m f=7i,b=true", encoder.reset().measurement("t", "m").field("f", 7).field("b", true).toString());
+	}
+
+	@Test
+	public void testNonFiniteSkipped() {
+		LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+		encoder.reset().measurement("t", "m")
+				.field("nan", Double.NaN)
+				.field("inf", Double.POSITIVE_INFINITY)
+				.field("ok", 1.5);
+
+		assertEquals("t.m ok=1.5", encoder.toString());
+	}
+
+	@Test
+	public void testWithoutIntegerFields() {
+		LineProtocolEncoder encoder = new LineProtocolEncoder(false);
+
+		assertEquals("t.m f=42", encoder.reset().measurement("t", "m").field("f", 42L).toString());
+
+		// the default, so existing measurements keep their float fields
+		assertEquals("t.m f=42", new LineProtocolEncoder().measurement("t", "m").field("f", 42L).toString());
+	}
+
+	@Test
+	public void testEscaping() {
+		LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+		encoder.reset()
+				.measurement("my origin", "a,b")
+				.tag("tag key", "x=y,z")
+				.field("msg", "say \"hi\" \\o/");
+
+		assertEquals("my\\ origin.a\\,b,tag\\ key=x\\=y\\,z msg=\"say \\\"hi\\\" \\\\o/\"", encoder.toString());
+	}
+
+	@Test
+	public void testUtf8AndJoinedValues() {
+		LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+		encoder.reset()
+				.measurement("t", "m")
+				.tag("name", "héllo😀")
+				.field("forwarded", Arrays.asList("1.2.3.4", "10.0.0.1"));
+
+		String expected = "t.m,name=héllo😀 forwarded=\"1.2.3.4,10.0.0.1\"";
+
+		assertEquals(expected, encoder.toString());
+		assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), encoder.toByteArray());
+	}
+
+	@Test
+	public void testBufferGrows() {
+		LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+		StringBuilder uri = new StringBuilder();
+		for (int i = 0; i < 1000; ++i) {
+			uri.append("/segment");
+		}
+
+		encoder.reset().measurement("t", "m").field("uri", uri.toString());
+		assertEquals("t.m uri=\"" + uri + "\"", encoder.toString());
+	}
+}
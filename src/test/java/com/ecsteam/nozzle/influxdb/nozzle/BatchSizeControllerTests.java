@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BatchSizeControllerTests {
+
+	private FlushPolicy policy;
+	private WriteStats stats;
+	private BatchedEventListener batcher;
+	private BatchSizeController controller;
+
+	@Before
+	public void setup() {
+		policy = new FlushPolicy(1000, 0, 0);
+		policy.setTargetPoints(500);
+
+		stats = new WriteStats();
+
+		// never started, whatever is put stays in the buffer, which holds a full batch of 1000
+		batcher = new BatchedEventListener(Collections.singletonList(new WriteTarget("default", null, null)), 1, 64,
+				null, policy, null, 1);
+
+		// 100 ms latency target, grows by (1000 - 100) / 20 = 45
+		controller = new BatchSizeController(policy, 100, 100, 1000, stats, batcher);
+	}
+
+	@Test
+	public void testSlowWritesShrink() {
+		assertEquals(450, controller.decide(500, 10, 110, 0, 0, false));
+
+		// by half at most
+		assertEquals(250, controller.decide(500, 10, 1000, 0, 0, false));
+
+		// not below the min
+		assertEquals(100, controller.decide(150, 10, 1000, 0, 0, false));
+	}
+
+	@Test
+	public void testErrorsHalve() {
+		assertEquals(250, controller.decide(500, 10, 10, 0.5, 1, true));
+	}
+
+	@Test
+	public void testBacklogGrows() {
+		assertEquals(545, controller.decide(500, 10, 50, 0, 0.5, false));
+		assertEquals(545, controller.decide(500, 10, 50, 0, 0, true));
+
+		// not above the max
+		assertEquals(1000, controller.decide(990, 10, 50, 0, 0.5, false));
+
+		// too close to the target to grow
+		assertEquals(500, controller.decide(500, 10, 90, 0, 0.5, false));
+	}
+
+	@Test
+	public void testIdleHolds() {
+		// fast writes but nothing backing up, a bigger batch would only wait longer
+		assertEquals(500, controller.decide(500, 10, 10, 0, 0, false));
+
+		// no writes at all
+		assertEquals(500, controller.decide(500, 0, 0, 0, 1, true));
+	}
+
+	@Test
+	public void testAdjust() {
+		for (int i = 0; i < 10; ++i) {
+			stats.record(TimeUnit.MILLISECONDS.toNanos(400), false);
+		}
+
+		controller.adjust();
+		assertEquals(250, policy.getTargetPoints());
+
+		// only the requests since the last look count
+		for (int i = 0; i < 128; ++i) {
+			batcher.put(0, new byte[1]);
+		}
+		for (int i = 0; i < 10; ++i) {
+			stats.record(TimeUnit.MILLISECONDS.toNanos(10), false);
+		}
+
+		controller.adjust();
+		assertEquals(295, policy.getTargetPoints());
+
+		assertTrue(controller.metrics().stream()
+				.anyMatch(metric -> metric.getName().equals("batches.size.target") && metric.getValue().intValue() == 295));
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class BatchSpoolTests {
+
+	private File directory;
+
+	@Before
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("spool").toFile();
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		try (Stream<Path> files = Files.walk(directory.toPath())) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void testReplayInOrder() {
+		BatchSpool spool = new BatchSpool(directory, 1 << 20);
+
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(spool.append(batch(i)));
+		}
+		assertEquals(10, spool.depth());
+
+		for (int i = 0; i < 10; ++i) {
+			BatchSpool.Batch batch = spool.peek();
+			assertArrayEquals(batch(i), batch.getBody());
+			assertTrue(spool.advance(batch));
+		}
+
+		assertNull(spool.peek());
+		assertEquals(0, spool.bytes());
+		assertEquals("Replayed segments should be deleted", 0, segmentCount());
+	}
+
+	@Test
+	public void testReopen() {
+		BatchSpool spool = new BatchSpool(directory, 1 << 20);
+		for (int i = 0; i < 5; ++i) {
+			spool.append(batch(i));
+		}
+		spool.advance(spool.peek());
+		spool.close();
+
+		// the replay position is not kept, the whole segment comes back
+		BatchSpool reopened = new BatchSpool(directory, 1 << 20);
+		assertEquals(5, reopened.depth());
+		assertArrayEquals(batch(0), reopened.peek().getBody());
+
+		reopened.append(batch(5));
+		assertEquals(6, reopened.depth());
+	}
+
+	@Test
+	public void testDropOldestWhenFull() {
+		// 8 segments of 64 bytes, each batch takes a segment of its own
+		BatchSpool spool = new BatchSpool(directory, 512);
+
+		for (int i = 0; i < 20; ++i) {
+			assertTrue(spool.append(batch(i)));
+		}
+
+		assertTrue(spool.bytes() <= 512);
+		assertTrue(spool.depth() < 20);
+		assertArrayEquals(batch(20 - spool.depth()), spool.peek().getBody());
+	}
+
+	@Test
+	public void testAdvanceAfterDrop() {
+		BatchSpool spool = new BatchSpool(directory, 512);
+		for (int i = 0; i < 20; ++i) {
+			assertTrue(spool.append(batch(i)));
+		}
+
+		// the full spool drops the oldest batch while it is being replayed
+		BatchSpool.Batch replaying = spool.peek();
+		assertTrue(spool.append(batch(20)));
+		int depth = spool.depth();
+
+		assertFalse(spool.advance(replaying));
+		assertEquals(depth, spool.depth());
+		assertArrayEquals(batch(21 - depth), spool.peek().getBody());
+	}
+
+	@Test
+	public void testLowerMaxBytes() {
+		BatchSpool spool = new BatchSpool(directory, 1 << 20);
+		for (int i = 0; i < 20; ++i) {
+			assertTrue(spool.append(batch(i)));
+		}
+
+		spool.setMaxBytes(512);
+		assertTrue(spool.append(batch(20)));
+
+		assertTrue(spool.bytes() <= 512);
+		assertArrayEquals(batch(21 - spool.depth()), spool.peek().getBody());
+	}
+
+	@Test
+	public void testDisabled() {
+		BatchSpool spool = new BatchSpool(directory, 0);
+
+		assertFalse(spool.isEnabled());
+		assertFalse(spool.append(batch(1)));
+		assertNull(spool.peek());
+	}
+
+	private static byte[] batch(int i) {
+		return ("measurement,tag=" + i + " value=" + i + "i 1490000000000000000\nsecond line " + i)
+				.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private long segmentCount() {
+		String[] segments = directory.list();
+		return segments != null ? segments.length : 0;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+public class BatchedEventListenerTests {
+
+	private static final CounterService NO_COUNTERS = new CounterService() {
+		@Override
+		public void increment(String metricName) {
+		}
+
+		@Override
+		public void decrement(String metricName) {
+		}
+
+		@Override
+		public void reset(String metricName) {
+		}
+	};
+
+	@Test
+	public void testStopSendsBufferedMessages() {
+		List<byte[]> sent = Collections.synchronizedList(new ArrayList<>());
+
+		InfluxDBBatchSender sender = new InfluxDBBatchSender(new NozzleProperties(), () -> "http://localhost") {
+			@Override
+			CompletableFuture<Void> sendBatch(WriteTarget target, List<byte[]> messages) {
+				// hold the first batch until stop() interrupts the consumer, so the rest stays buffered
+				while (sent.isEmpty() && !Thread.currentThread().isInterrupted()) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+				}
+
+				sent.addAll(messages);
+				return CompletableFuture.completedFuture(null);
+			}
+		};
+
+		BatchedEventListener batcher = new BatchedEventListener(1, 64, sender, new FlushPolicy(10, 0, 0),
+				NO_COUNTERS, 4);
+		batcher.start();
+
+		for (int i = 0; i < 60; ++i) {
+			assertTrue(batcher.put(0, new byte[]{(byte) i}));
+		}
+
+		batcher.stop();
+
+		assertEquals(60, sent.size());
+		for (int i = 0; i < 60; ++i) {
+			assertEquals(i, sent.get(i)[0]);
+		}
+	}
+
+	@Test
+	public void testOnlyFailingTargetsDrop() throws InterruptedException {
+		InfluxDBBatchSender sender = new InfluxDBBatchSender(new NozzleProperties(), () -> "http://localhost") {
+			@Override
+			CompletableFuture<Void> sendBatch(WriteTarget target, List<byte[]> messages) {
+				// InfluxDB never answers, until stop() interrupts the consumer
+				while (!Thread.currentThread().isInterrupted()) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+				}
+				return CompletableFuture.completedFuture(null);
+			}
+		};
+
+		WriteTarget slow = new WriteTarget("slow", "slow", null);
+		WriteTarget failing = new WriteTarget("failing", "failing", null);
+		failing.setHealthy(false);
+
+		BatchedEventListener batcher = new BatchedEventListener(Arrays.asList(slow, failing), 1, 4, sender,
+				new FlushPolicy(1, 0, 0), NO_COUNTERS, 1);
+		batcher.start();
+
+		int accepted = 0;
+		while (batcher.put(1, 0, new byte[1])) {
+			++accepted;
+		}
+		assertTrue(accepted >= 4);
+
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i < 100 && batcher.put(0, 0, new byte[1]); ++i) {
+				// keep filling
+			}
+		});
+		producer.start();
+		producer.join(200);
+
+		try {
+			assertTrue("Should wait for room in a healthy target's buffer", producer.isAlive());
+		} finally {
+			batcher.stop();
+			producer.join(1000);
+		}
+
+		assertFalse(producer.isAlive());
+	}
+}
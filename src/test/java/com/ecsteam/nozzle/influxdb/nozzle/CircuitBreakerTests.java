@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTests {
+
+	@Test
+	public void testOpensAfterFailuresInARow() {
+		CircuitBreaker breaker = new CircuitBreaker("default", 3, 1000);
+
+		breaker.recordFailure(0);
+		breaker.recordFailure(0);
+		assertEquals(CircuitBreaker.State.closed, breaker.getState());
+		assertTrue(breaker.isDegraded());
+
+		// a success in between starts over
+		breaker.recordSuccess();
+		assertFalse(breaker.isDegraded());
+		breaker.recordFailure(0);
+		breaker.recordFailure(0);
+		assertTrue(breaker.allowRequest(0));
+
+		breaker.recordFailure(100);
+		assertEquals(CircuitBreaker.State.open, breaker.getState());
+		assertEquals(1, breaker.getOpened());
+
+		assertFalse(breaker.allowRequest(500));
+		assertFalse(breaker.allowRequest(1099));
+		assertEquals(2, breaker.getRejected());
+	}
+
+	@Test
+	public void testProbe() {
+		CircuitBreaker breaker = open();
+
+		// one probe, the others still wait
+		assertTrue(breaker.allowRequest(1000));
+		assertEquals(CircuitBreaker.State.halfOpen, breaker.getState());
+		assertFalse(breaker.allowRequest(1001));
+
+		breaker.recordSuccess();
+		assertEquals(CircuitBreaker.State.closed, breaker.getState());
+		assertTrue(breaker.allowRequest(1002));
+		assertFalse(breaker.isDegraded());
+	}
+
+	@Test
+	public void testFailedProbeReopens() {
+		CircuitBreaker breaker = open();
+
+		assertTrue(breaker.allowRequest(1000));
+		breaker.recordFailure(1100);
+		assertEquals(CircuitBreaker.State.open, breaker.getState());
+		assertEquals(2, breaker.getOpened());
+
+		assertFalse(breaker.allowRequest(2000));
+		assertTrue(breaker.allowRequest(2100));
+	}
+
+	@Test
+	public void testLostProbe() {
+		CircuitBreaker breaker = open();
+
+		assertTrue(breaker.allowRequest(1000));
+		assertFalse(breaker.allowRequest(1999));
+
+		// the probe never reported back, try another
+		assertTrue(breaker.allowRequest(2000));
+	}
+
+	@Test
+	public void testNeverOpens() {
+		CircuitBreaker breaker = new CircuitBreaker("default", 0, 1000);
+
+		for (int i = 0; i < 100; ++i) {
+			breaker.recordFailure(0);
+		}
+
+		assertEquals(CircuitBreaker.State.closed, breaker.getState());
+		assertTrue(breaker.allowRequest(0));
+
+		// off, so nothing is shed on its account
+		assertFalse(breaker.isDegraded());
+	}
+
+	private static CircuitBreaker open() {
+		CircuitBreaker breaker = new CircuitBreaker("default", 1, 1000);
+		breaker.recordFailure(0);
+		assertEquals(CircuitBreaker.State.open, breaker.getState());
+
+		return breaker;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ConsistentHashRingTests {
+
+	private static final int SERIES = 20_000;
+
+	@Test
+	public void testSpread() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("http://a:8086", "http://b:8086",
+				"http://c:8086", "http://d:8086"));
+
+		int[] counts = new int[4];
+		for (int i = 0; i < SERIES; ++i) {
+			byte[] series = series(i);
+			++counts[ring.endpointOf(series, series.length)];
+		}
+
+		for (int count : counts) {
+			assertTrue(Arrays.toString(counts), count > SERIES / 4 * 0.8 && count < SERIES / 4 * 1.2);
+		}
+	}
+
+	@Test
+	public void testStable() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("http://a:8086", "http://b:8086"));
+		ConsistentHashRing reordered = new ConsistentHashRing(Arrays.asList("http://b:8086", "http://a:8086"));
+
+		for (int i = 0; i < 1000; ++i) {
+			byte[] series = series(i);
+			int endpoint = ring.endpointOf(series, series.length);
+
+			// the same key in a larger buffer, with fields after it
+			byte[] point = Arrays.copyOf(series, series.length + 10);
+			assertEquals(endpoint, ring.endpointOf(point, series.length));
+
+			// positions depend on the URLs, not their order
+			assertEquals(1 - endpoint, reordered.endpointOf(series, series.length));
+		}
+	}
+
+	@Test
+	public void testAddingEndpointMovesFewSeries() {
+		ConsistentHashRing three = new ConsistentHashRing(Arrays.asList("http://a:8086", "http://b:8086",
+				"http://c:8086"));
+		ConsistentHashRing four = new ConsistentHashRing(Arrays.asList("http://a:8086", "http://b:8086",
+				"http://c:8086", "http://d:8086"));
+
+		int moved = 0;
+		for (int i = 0; i < SERIES; ++i) {
+			byte[] series = series(i);
+			int before = three.endpointOf(series, series.length);
+			int after = four.endpointOf(series, series.length);
+
+			if (before != after) {
+				// only to the new endpoint
+				assertEquals(3, after);
+				++moved;
+			}
+		}
+
+		// about a quarter move, a modulo would move three quarters
+		assertTrue(Integer.toString(moved), moved > SERIES / 4 * 0.8 && moved < SERIES / 4 * 1.2);
+	}
+
+	@Test
+	public void testSingleEndpoint() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("http://a:8086"));
+
+		byte[] series = series(42);
+		assertEquals(0, ring.endpointOf(series, series.length));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoEndpoints() {
+		new ConsistentHashRing(Arrays.asList());
+	}
+
+	private static byte[] series(int i) {
+		return ("ValueMetric.requests,origin=gorouter,deployment=cf,job=router,index=" + i)
+				.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.lineprotocol.LineProtocolEncoder;
+import org.cloudfoundry.doppler.CounterEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CounterCoalescerTests {
+
+	private final List<String> points = new ArrayList<>();
+
+	private CounterCoalescer coalescer;
+
+	@Before
+	public void setup() {
+		points.clear();
+		coalescer = new CounterCoalescer(10_000, 2, null, true) {
+			@Override
+			void emit(byte[] point, int target, int hash) {
+				points.add(new String(point, StandardCharsets.UTF_8));
+			}
+		};
+	}
+
+	@Test
+	public void testCoalesce() {
+		assertTrue(coalescer.addCounterEvent(prefix("requests"), 0, event(100L, 5L)));
+		assertTrue(coalescer.addCounterEvent(prefix("requests"), 0, event(103L, 3L)));
+		assertTrue(coalescer.addCounterEvent(prefix("requests"), 0, event(110L, 7L)));
+		assertTrue(coalescer.addCounterEvent(prefix("errors"), 0, event(1L, 1L)));
+
+		coalescer.closeWindow(10_000);
+		points.sort(null);
+
+		assertEquals(2, points.size());
+		assertEquals("router.errors total=1i,delta=1i 10000000000", points.get(0));
+		assertEquals("router.requests total=110i,delta=15i 10000000000", points.get(1));
+
+		assertTrue(coalescer.addCounterEvent(prefix("requests"), 0, event(112L, 2L)));
+		coalescer.closeWindow(20_000);
+
+		assertEquals("router.requests total=112i,delta=2i 20000000000", points.get(2));
+	}
+
+	@Test
+	public void testMaxSeries() {
+		assertTrue(coalescer.addCounterEvent(prefix("a"), 0, event(1L, 1L)));
+		assertTrue(coalescer.addCounterEvent(prefix("b"), 0, event(1L, 1L)));
+		assertFalse(coalescer.addCounterEvent(prefix("c"), 0, event(1L, 1L)));
+
+		coalescer.closeWindow(0);
+		coalescer.closeWindow(10_000);
+		assertEquals(0, coalescer.size());
+
+		assertTrue(coalescer.addCounterEvent(prefix("c"), 0, event(1L, 1L)));
+	}
+
+	private static LineProtocolEncoder prefix(String name) {
+		return new LineProtocolEncoder().measurement("router", name);
+	}
+
+	private static CounterEvent event(Long total, Long delta) {
+		return CounterEvent.builder().name("counter").total(total).delta(delta).build();
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.CounterEvent;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class EnvelopeDeduplicatorTests {
+
+	@Test
+	public void testDuplicates() {
+		EnvelopeDeduplicator deduplicator = new EnvelopeDeduplicator(60_000, 1000, 0.001);
+
+		assertFalse(deduplicator.isDuplicate(counterEvent(1000L, 100L, 1L)));
+		assertTrue(deduplicator.isDuplicate(counterEvent(1000L, 100L, 1L)));
+
+		// same counter, next event
+		assertFalse(deduplicator.isDuplicate(counterEvent(1001L, 101L, 1L)));
+		assertFalse(deduplicator.isDuplicate(counterEvent(1001L, 102L, 1L)));
+	}
+
+	@Test
+	public void testFingerprint() {
+		assertEquals(EnvelopeDeduplicator.fingerprint(counterEvent(1000L, 100L, 1L)),
+				EnvelopeDeduplicator.fingerprint(counterEvent(1000L, 100L, 1L)));
+		assertNotEquals(EnvelopeDeduplicator.fingerprint(counterEvent(1000L, 100L, 1L)),
+				EnvelopeDeduplicator.fingerprint(counterEvent(1000L, 1L, 100L)));
+	}
+
+	@Test
+	public void testRotation() {
+		EnvelopeDeduplicator deduplicator = new EnvelopeDeduplicator(1000, 1000, 0.001);
+		long now = System.currentTimeMillis();
+
+		assertFalse(deduplicator.isDuplicate(42L, now));
+
+		// still in the older filter after one rotation
+		assertTrue(deduplicator.isDuplicate(42L, now + 1500));
+
+		// seen again above, so remembered for another window
+		assertTrue(deduplicator.isDuplicate(42L, now + 3000));
+
+		// forgotten after two windows without it
+		assertFalse(deduplicator.isDuplicate(42L, now + 6000));
+	}
+
+	@Test
+	public void testFalsePositiveRate() {
+		EnvelopeDeduplicator deduplicator = new EnvelopeDeduplicator(60_000, 10_000, 0.01);
+		long now = System.currentTimeMillis();
+		Random random = new Random(17);
+
+		int falsePositives = 0;
+		for (int i = 0; i < 10_000; ++i) {
+			if (deduplicator.isDuplicate(random.nextLong(), now)) {
+				++falsePositives;
+			}
+		}
+
+		// the filter fills as it goes, so on average below the rate it is sized for
+		assertTrue(Integer.toString(falsePositives), falsePositives < 100);
+		assertEquals(0.01, deduplicator.falsePositiveRate(), 0.005);
+	}
+
+	private static Envelope counterEvent(Long timestamp, Long total, Long delta) {
+		return Envelope.builder()
+				.eventType(EventType.COUNTER_EVENT)
+				.origin("router")
+				.job("router")
+				.index("0")
+				.timestamp(timestamp)
+				.counterEvent(CounterEvent.builder().name("requests").total(total).delta(delta).build())
+				.build();
+	}
+}
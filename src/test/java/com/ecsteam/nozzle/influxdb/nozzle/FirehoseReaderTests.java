@@ -34,6 +34,7 @@ import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.doAnswer;
 
 @RunWith(SpringRunner.class)
@@ -63,7 +64,7 @@ public class FirehoseReaderTests {
 			eventCounts.put(eventType, eventCounts.get(eventType) + 1);
 
 			return null;
-		}).when(mockWriter).writeMessage(any());
+		}).when(mockWriter).writeMessage(any(), anyInt());
 	}
 
 	@Test
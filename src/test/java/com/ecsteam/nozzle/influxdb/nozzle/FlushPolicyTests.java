@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FlushPolicyTests {
+
+	@Test
+	public void testCount() {
+		FlushPolicy policy = new FlushPolicy(3, 0, 0);
+
+		assertFalse(policy.isFull(2));
+		assertTrue(policy.isFull(3));
+	}
+
+	@Test
+	public void testTargetPoints() {
+		FlushPolicy policy = new FlushPolicy(100, 0, 0);
+		assertEquals(100, policy.getTargetPoints());
+
+		policy.setTargetPoints(10);
+		assertFalse(policy.isFull(9));
+		assertTrue(policy.isFull(10));
+
+		// kept within 1 and maxPoints
+		policy.setTargetPoints(1000);
+		assertEquals(100, policy.getTargetPoints());
+		policy.setTargetPoints(0);
+		assertEquals(1, policy.getTargetPoints());
+	}
+
+	@Test
+	public void testBytes() {
+		FlushPolicy policy = new FlushPolicy(100, 1000, 0);
+
+		assertTrue(policy.fits(900, 100));
+		assertFalse(policy.fits(901, 100));
+
+		// an oversized point still goes out, on its own
+		assertTrue(policy.fits(0, 5000));
+	}
+
+	@Test
+	public void testLinger() {
+		FlushPolicy policy = new FlushPolicy(100, 0, 50);
+		long started = System.nanoTime();
+
+		assertEquals(Long.MAX_VALUE, policy.remainingLinger(0, started, started));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(30), policy.remainingLinger(1, started, started + TimeUnit.MILLISECONDS.toNanos(20)));
+		assertEquals(0, policy.remainingLinger(1, started, started + TimeUnit.MILLISECONDS.toNanos(60)));
+	}
+
+	@Test
+	public void testUnbounded() {
+		FlushPolicy policy = new FlushPolicy(100, 0, 0);
+
+		assertTrue(policy.fits(Long.MAX_VALUE / 2, 1000));
+		assertEquals(Long.MAX_VALUE, policy.remainingLinger(10, 0, TimeUnit.DAYS.toNanos(1)));
+	}
+}
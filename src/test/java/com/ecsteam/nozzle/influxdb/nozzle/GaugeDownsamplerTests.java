@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.lineprotocol.LineProtocolEncoder;
+import org.cloudfoundry.doppler.ContainerMetric;
+import org.cloudfoundry.doppler.EventType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GaugeDownsamplerTests {
+
+	private final List<String> points = new ArrayList<>();
+
+	private GaugeDownsampler downsampler;
+
+	@Before
+	public void setup() {
+		points.clear();
+		downsampler = new GaugeDownsampler(10_000, 2,
+				Arrays.asList(EventType.VALUE_METRIC, EventType.CONTAINER_METRIC), null, true) {
+			@Override
+			void emit(byte[] point, int target, int hash) {
+				points.add(new String(point, StandardCharsets.UTF_8));
+			}
+		};
+	}
+
+	@Test
+	public void testValueMetric() {
+		assertTrue(downsampler.addValueMetric(prefix("cpu"), 0, 1.0, "percent"));
+		assertTrue(downsampler.addValueMetric(prefix("cpu"), 0, 4.0, "percent"));
+		assertTrue(downsampler.addValueMetric(prefix("cpu"), 0, 2.5, "percent"));
+
+		downsampler.closeWindow(10_000);
+
+		assertEquals(1, points.size());
+		assertEquals("origin.cpu,job=router value=2.5,value_min=1,value_max=4,value_last=2.5,count=3i,"
+				+ "unit=\"percent\" 10000000000", points.get(0));
+	}
+
+	@Test
+	public void testContainerMetric() {
+		assertTrue(downsampler.addContainerMetric(instancePrefix(0), 0, containerMetric(0, 100L)));
+		assertTrue(downsampler.addContainerMetric(instancePrefix(0), 0, containerMetric(0, 201L)));
+		assertTrue(downsampler.addContainerMetric(instancePrefix(1), 0, containerMetric(1, 300L)));
+
+		downsampler.closeWindow(0);
+
+		assertEquals(2, points.size());
+		points.sort(null);
+		assertTrue(points.get(0), points.get(0).startsWith("origin.ContainerMetric,job=router,instance=0 "
+				+ "instanceIndex=0i,cpuPercentage=1.5,cpuPercentage_min=1.5,cpuPercentage_max=1.5,cpuPercentage_last=1.5,"));
+		assertTrue(points.get(0), points.get(0).contains(
+				",memoryBytes=151i,memoryBytes_min=100i,memoryBytes_max=201i,memoryBytes_last=201i,"));
+		assertTrue(points.get(0), points.get(0).endsWith(",count=2i 0"));
+		assertTrue(points.get(1), points.get(1).startsWith("origin.ContainerMetric,job=router,instance=1 instanceIndex=1i,"));
+		assertTrue(points.get(1), points.get(1).contains(",memoryBytes=300i,"));
+	}
+
+	@Test
+	public void testIdleSeriesDropped() {
+		downsampler.addValueMetric(prefix("cpu"), 0, 1.0, "percent");
+
+		downsampler.closeWindow(0);
+		assertEquals(1, downsampler.size());
+
+		downsampler.closeWindow(10_000);
+		assertEquals(1, points.size());
+		assertEquals(0, downsampler.size());
+	}
+
+	@Test
+	public void testMaxSeries() {
+		assertTrue(downsampler.addValueMetric(prefix("a"), 0, 1.0, null));
+		assertTrue(downsampler.addValueMetric(prefix("b"), 0, 1.0, null));
+		assertFalse(downsampler.addValueMetric(prefix("c"), 0, 1.0, null));
+		assertTrue(downsampler.addValueMetric(prefix("a"), 0, 2.0, null));
+	}
+
+	@Test
+	public void testDisabled() {
+		GaugeDownsampler disabled = new GaugeDownsampler(0, 2, Arrays.asList(EventType.VALUE_METRIC), null, true);
+		assertFalse(disabled.downsamples(EventType.VALUE_METRIC));
+
+		assertTrue(downsampler.downsamples(EventType.VALUE_METRIC));
+		assertFalse(downsampler.downsamples(EventType.COUNTER_EVENT));
+	}
+
+	private static LineProtocolEncoder prefix(String name) {
+		return new LineProtocolEncoder().measurement("origin", name).tag("job", "router");
+	}
+
+	private static LineProtocolEncoder instancePrefix(int instanceIndex) {
+		return prefix("ContainerMetric").tag(GaugeDownsampler.INSTANCE_TAG, Integer.toString(instanceIndex));
+	}
+
+	private static ContainerMetric containerMetric(int instanceIndex, long memoryBytes) {
+		return ContainerMetric.builder()
+				.applicationId("app1234")
+				.instanceIndex(instanceIndex)
+				.cpuPercentage(1.5)
+				.diskBytes(10L)
+				.diskBytesQuota(20L)
+				.memoryBytes(memoryBytes)
+				.memoryBytesQuota(1000L)
+				.build();
+	}
+}
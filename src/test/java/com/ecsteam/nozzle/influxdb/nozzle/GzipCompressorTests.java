@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class GzipCompressorTests {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		GzipCompressor compressor = new GzipCompressor(true, 1);
+
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 1000; ++i) {
+			body.append("gorouter.latency,foundation=prod,eventType=ValueMetric value=").append(i).append(" 1490000000000000000\n");
+		}
+		byte[] content = body.toString().getBytes(StandardCharsets.UTF_8);
+
+		// twice, the second time with a pooled deflater
+		for (int i = 0; i < 2; ++i) {
+			byte[] compressed = compressor.compress(content);
+
+			assertTrue("Body did not compress", compressed.length * 5 < content.length);
+			assertArrayEquals(content, gunzip(compressed));
+		}
+
+		assertEquals((long) content.length * 2, compressor.metrics().iterator().next().getValue());
+	}
+
+	@Test
+	public void testIncompressible() throws Exception {
+		GzipCompressor compressor = new GzipCompressor(true, 9);
+
+		byte[] content = new byte[10000];
+		new Random(42).nextBytes(content);
+
+		assertArrayEquals(content, gunzip(compressor.compress(content)));
+		assertArrayEquals(new byte[0], gunzip(compressor.compress(new byte[0])));
+	}
+
+	private static byte[] gunzip(byte[] compressed) throws IOException {
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+	}
+}
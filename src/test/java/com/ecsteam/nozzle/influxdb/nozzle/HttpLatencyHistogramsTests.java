@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.lineprotocol.LineProtocolEncoder;
+import org.cloudfoundry.doppler.HttpStartStop;
+import org.cloudfoundry.doppler.Method;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HttpLatencyHistogramsTests {
+
+	private final List<String> points = new ArrayList<>();
+
+	private HttpLatencyHistograms histograms;
+
+	@Before
+	public void setup() {
+		points.clear();
+		histograms = new HttpLatencyHistograms(10_000, 100, null, true) {
+			@Override
+			void emit(byte[] point, int target, int hash) {
+				points.add(new String(point, StandardCharsets.UTF_8));
+			}
+		};
+	}
+
+	@Test
+	public void testBuckets() {
+		for (long micros = 0; micros < 1L << 31; micros = micros * 3 / 2 + 1) {
+			long highest = HttpLatencyHistograms.highestOf(HttpLatencyHistograms.bucketOf(micros));
+
+			assertTrue(micros + " -> " + highest, highest >= Math.min(micros, (1L << 30) - 1));
+			assertTrue(micros + " -> " + highest, highest <= Math.max(micros * 17 / 16, micros + 1));
+		}
+
+		assertEquals(31, HttpLatencyHistograms.highestOf(HttpLatencyHistograms.bucketOf(31)));
+		assertEquals(33, HttpLatencyHistograms.highestOf(HttpLatencyHistograms.bucketOf(32)));
+	}
+
+	@Test
+	public void testPercentiles() {
+		// 1 to 100 ms
+		for (int i = 1; i <= 100; ++i) {
+			assertTrue(histograms.addRequest(prefix(), 0, request(200, Method.GET, i * 1_000_000L)));
+		}
+		assertTrue(histograms.addRequest(prefix(), 0, request(503, Method.GET, 2_000_000L)));
+
+		histograms.closeWindow(10_000);
+		points.sort(null);
+
+		assertEquals(2, points.size());
+
+		String ok = points.get(0);
+		assertTrue(ok, ok.startsWith("gorouter.HttpLatency,applicationId=app1234,statusClass=2xx,method=GET "
+				+ "count=100i,errors=0i,"));
+		assertTrue(ok, ok.endsWith(",max=100 10000000000"));
+		assertWithin(50, field(ok, "p50"));
+		assertWithin(90, field(ok, "p90"));
+		assertWithin(99, field(ok, "p99"));
+
+		String errors = points.get(1);
+		assertTrue(errors, errors.contains(",statusClass=5xx,method=GET count=1i,errors=1i,"));
+	}
+
+	@Test
+	public void testWithoutDuration() {
+		HttpStartStop noStop = HttpStartStop.builder().method(Method.GET).statusCode(200).startTimestamp(1L).build();
+		assertFalse(histograms.addRequest(prefix(), 0, noStop));
+		assertFalse(histograms.addRequest(prefix(), 0, request(200, Method.GET, -1)));
+		assertEquals(0, histograms.size());
+	}
+
+	@Test
+	public void testIdleSeriesDropped() {
+		histograms.addRequest(prefix(), 0, request(200, Method.POST, 1_000_000L));
+		histograms.closeWindow(0);
+		histograms.closeWindow(10_000);
+
+		assertEquals(1, points.size());
+		assertEquals(0, histograms.size());
+	}
+
+	private static void assertWithin(double expected, double actual) {
+		assertTrue(expected + " ~ " + actual, actual >= expected && actual <= expected * 17 / 16);
+	}
+
+	private static double field(String point, String name) {
+		int start = point.indexOf("," + name + "=") + name.length() + 2;
+		int end = point.indexOf(',', start);
+		return Double.parseDouble(point.substring(start, end));
+	}
+
+	private static LineProtocolEncoder prefix() {
+		return new LineProtocolEncoder().measurement("gorouter", "HttpLatency").tag("applicationId", "app1234");
+	}
+
+	private static HttpStartStop request(int statusCode, Method method, long nanos) {
+		return HttpStartStop.builder()
+				.statusCode(statusCode)
+				.method(method)
+				.startTimestamp(1_000_000_000L)
+				.stopTimestamp(1_000_000_000L + nanos)
+				.build();
+	}
+}
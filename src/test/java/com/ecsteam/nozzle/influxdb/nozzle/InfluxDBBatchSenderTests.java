@@ -26,19 +26,26 @@ import org.springframework.context.annotation.AnnotationConfigApplicationContext
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.task.TaskExecutor;
+import org.springframework.http.HttpStatus;
 import org.springframework.retry.annotation.EnableRetry;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -46,7 +53,11 @@ import static org.junit.Assert.*;
 @RunWith(SpringRunner.class)
 public class InfluxDBBatchSenderTests {
 
-	private static final List<String> SAMPLE_BATCH = Arrays.asList("test line 1", "test line 2", "asdf , asdf , asdf", "foo=bar");
+	private static final List<String> SAMPLE_LINES = Arrays.asList("test line 1", "test line 2", "asdf , asdf , asdf", "foo=bar");
+
+	private static final List<byte[]> SAMPLE_BATCH = SAMPLE_LINES.stream()
+			.map(line -> line.getBytes(StandardCharsets.UTF_8))
+			.collect(Collectors.toList());
 
 	@Test
 	public void testSuccessfulSend() throws Exception {
@@ -63,7 +74,7 @@ public class InfluxDBBatchSenderTests {
 		final List<String> errorMessages = new ArrayList<>();
 		template.setInterceptors(Collections.singletonList(new TestInterceptor(0, (body) -> {
 			try {
-				assertEquals("HTTP Body does not match", SAMPLE_BATCH.stream().collect(Collectors.joining("\n")), body);
+				assertEquals("HTTP Body does not match", SAMPLE_LINES.stream().collect(Collectors.joining("\n")), body);
 			} catch (AssertionError e) {
 				errorMessages.add(e.getMessage());
 			}
@@ -97,7 +108,7 @@ public class InfluxDBBatchSenderTests {
 
 		TestInterceptor interceptor = new TestInterceptor(5, (body -> {
 			try {
-				assertEquals("HTTP Body does not match", SAMPLE_BATCH.stream().collect(Collectors.joining("\n")), body);
+				assertEquals("HTTP Body does not match", SAMPLE_LINES.stream().collect(Collectors.joining("\n")), body);
 			} catch (AssertionError e) {
 				errorMessages.add(e.getMessage());
 			}
@@ -151,6 +162,65 @@ public class InfluxDBBatchSenderTests {
 		assertEquals("Interceptor was wrong", interceptor.getCounter().get(), numRetries.get());
 	}
 
+	@Test
+	public void testServerErrorIsSpooled() throws Exception {
+		final CountDownLatch counter = new CountDownLatch(1);
+
+		AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(TestNoRetryConfiguration.class);
+
+		InfluxDBBatchSender bean = context.getBean(InfluxDBBatchSender.class);
+
+		File directory = Files.createTempDirectory("spool").toFile();
+		BatchSpool spool = new BatchSpool(directory, 1024 * 1024);
+		bean.setSpool(spool);
+
+		RestTemplate template = new RestTemplate();
+
+		// no connection errors, InfluxDB answers 503 every time
+		TestInterceptor interceptor = new TestInterceptor(0, HttpStatus.SERVICE_UNAVAILABLE, (body) -> {});
+		template.setInterceptors(Collections.singletonList(interceptor));
+
+		bean.setHttpClient(template);
+
+		final AtomicInteger numRetries = new AtomicInteger(0);
+		bean.setRecoverCallback((recoveryContext) -> {
+			numRetries.set(recoveryContext.getRetryCount());
+			counter.countDown();
+		});
+
+		bean.sendBatch(SAMPLE_BATCH);
+		counter.await();
+
+		try {
+			assertEquals("Didn't retry enough times", 10, numRetries.get());
+			assertFalse("Target should be unhealthy", bean.isHealthy());
+			assertEquals(1, spool.depth());
+			assertEquals(SAMPLE_LINES.stream().collect(Collectors.joining("\n")),
+					new String(spool.peek().getBody(), StandardCharsets.UTF_8));
+		} finally {
+			spool.close();
+			try (Stream<Path> files = Files.walk(directory.toPath())) {
+				files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			}
+		}
+	}
+
+	@Test
+	public void testReplayServerErrorMarksUnhealthy() throws Exception {
+		AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(TestNoRetryConfiguration.class);
+
+		InfluxDBBatchSender bean = context.getBean(InfluxDBBatchSender.class);
+
+		RestTemplate template = new RestTemplate();
+		template.setInterceptors(Collections.singletonList(
+				new TestInterceptor(0, HttpStatus.SERVICE_UNAVAILABLE, (body) -> {})));
+		bean.setHttpClient(template);
+
+		assertTrue(bean.isHealthy());
+		assertFalse(bean.write("measurement value=1".getBytes(StandardCharsets.UTF_8)));
+		assertFalse("Target should be unhealthy", bean.isHealthy());
+	}
+
 	@Configuration
 	@EnableAsync
 	@EnableRetry
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.EventType;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class LoadShedderTests {
+
+	private WriteTarget healthy;
+	private WriteTarget degraded;
+	private WriteTarget open;
+
+	private LoadShedder shedder;
+
+	@Before
+	public void setup() {
+		healthy = new WriteTarget("healthy", null, null);
+		degraded = new WriteTarget("degraded", null, null);
+		open = new WriteTarget("open", null, null);
+
+		degraded.setCircuitBreaker(new CircuitBreaker("degraded", 3, 1000));
+		degraded.getCircuitBreaker().recordFailure();
+
+		open.setCircuitBreaker(new CircuitBreaker("open", 1, 60000));
+		open.getCircuitBreaker().recordFailure();
+
+		NozzleProperties properties = new NozzleProperties();
+		properties.setShedOrder("[\"HTTP_START_STOP\", \"COUNTER_EVENT\"]");
+
+		// no breaker yet for the healthy target, it has not been written to
+		shedder = new LoadShedder(properties.getShedOrder(), Arrays.asList(healthy, degraded, open));
+	}
+
+	@Test
+	public void testShedInOrder() {
+		assertTrue(shedder.isEnabled());
+
+		for (EventType eventType : EventType.values()) {
+			assertFalse(shedder.shed(0, eventType));
+		}
+
+		// degraded, only the first type
+		assertTrue(shedder.shed(1, EventType.HTTP_START_STOP));
+		assertFalse(shedder.shed(1, EventType.COUNTER_EVENT));
+		assertFalse(shedder.shed(1, EventType.VALUE_METRIC));
+
+		// open, every listed type
+		assertTrue(shedder.shed(2, EventType.HTTP_START_STOP));
+		assertTrue(shedder.shed(2, EventType.COUNTER_EVENT));
+		assertFalse(shedder.shed(2, EventType.VALUE_METRIC));
+		assertFalse(shedder.shed(2, EventType.CONTAINER_METRIC));
+
+		degraded.getCircuitBreaker().recordSuccess();
+		assertFalse(shedder.shed(1, EventType.HTTP_START_STOP));
+	}
+
+	@Test
+	public void testMetrics() {
+		shedder.shed(1, EventType.HTTP_START_STOP);
+		shedder.shed(2, EventType.HTTP_START_STOP);
+		shedder.shed(2, EventType.COUNTER_EVENT);
+
+		assertEquals(2L, value("events.shed.HTTP_START_STOP"));
+		assertEquals(1L, value("events.shed.COUNTER_EVENT"));
+		assertEquals(1, value("targets.open.breaker.state"));
+		assertEquals(0, value("targets.degraded.breaker.state"));
+		assertNull(value("targets.healthy.breaker.state"));
+	}
+
+	@Test
+	public void testBreakerOff() {
+		WriteTarget off = new WriteTarget("off", null, null);
+		off.setCircuitBreaker(new CircuitBreaker("off", 0, 1000));
+		off.getCircuitBreaker().recordFailure();
+
+		LoadShedder offShedder = new LoadShedder(Arrays.asList(EventType.HTTP_START_STOP), Arrays.asList(off));
+		assertFalse(offShedder.shed(0, EventType.HTTP_START_STOP));
+	}
+
+	@Test
+	public void testDisabled() {
+		LoadShedder disabled = new LoadShedder(new NozzleProperties().getShedOrder(), Arrays.asList(open));
+
+		assertFalse(disabled.isEnabled());
+		assertFalse(disabled.shed(0, EventType.HTTP_START_STOP));
+	}
+
+	private Number value(String name) {
+		for (Metric<?> metric : shedder.metrics()) {
+			if (metric.getName().equals(name)) {
+				return metric.getValue();
+			}
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class MpscRingBufferTests {
+
+	@Test
+	public void testBounded() {
+		MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(3);
+		assertEquals("Capacity should round up to a power of two", 4, buffer.capacity());
+
+		for (int i = 0; i < 4; ++i) {
+			assertTrue(buffer.offer(i));
+		}
+
+		assertFalse("Offer to a full buffer should fail", buffer.offer(4));
+		assertEquals(Integer.valueOf(0), buffer.poll());
+		assertTrue("Polling should free a slot", buffer.offer(4));
+	}
+
+	@Test
+	public void testDrainInOrder() {
+		MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(16);
+		for (int i = 0; i < 10; ++i) {
+			buffer.offer(i);
+		}
+
+		List<Integer> drained = new ArrayList<>();
+		assertEquals(4, buffer.drainTo(drained, 4));
+		assertEquals(6, buffer.drainTo(drained, 100));
+
+		for (int i = 0; i < 10; ++i) {
+			assertEquals(Integer.valueOf(i), drained.get(i));
+		}
+
+		assertTrue(buffer.isEmpty());
+		assertNull(buffer.poll());
+	}
+
+	@Test
+	public void testConcurrentProducers() throws Exception {
+		final int producers = 4;
+		final int perProducer = 100_000;
+
+		final MpscRingBuffer<long[]> buffer = new MpscRingBuffer<>(1024);
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; ++p) {
+			final int producer = p;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				for (long i = 0; i < perProducer; ++i) {
+					long[] element = {producer, i};
+					while (!buffer.offer(element)) {
+						Thread.yield();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+
+		long[] next = new long[producers];
+		int received = 0;
+		List<long[]> batch = new ArrayList<>();
+		while (received < producers * perProducer) {
+			batch.clear();
+			received += buffer.drainTo(batch, 128);
+
+			for (long[] element : batch) {
+				int producer = (int) element[0];
+				assertEquals("Messages from one producer were reordered", next[producer], element[1]);
+				next[producer]++;
+			}
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(buffer.isEmpty());
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.EventType;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class SeriesPrefixCacheTests {
+
+	private static final byte[] PREFIX = "test.metric,job=test-job".getBytes();
+
+	@Test
+	public void testHitAfterPut() {
+		SeriesPrefixCache cache = new SeriesPrefixCache(10);
+		SeriesPrefixCache.Key probe = key("metric");
+
+		assertNull(cache.get(probe));
+		cache.put(probe, PREFIX, cache.generation());
+
+		// a different probe with the same identity must find the entry
+		assertSame(PREFIX, cache.get(key("metric")));
+		assertNull(cache.get(key("other")));
+	}
+
+	@Test
+	public void testTagsArePartOfTheKey() {
+		SeriesPrefixCache cache = new SeriesPrefixCache(10);
+		cache.put(key("metric"), PREFIX, cache.generation());
+
+		SeriesPrefixCache.Key tagged = new SeriesPrefixCache.Key().set(EventType.VALUE_METRIC, "test", "metric",
+				null, "test-job", null, null, Collections.singletonMap("zone", "z1"), null);
+
+		assertNull(cache.get(tagged));
+	}
+
+	@Test
+	public void testBounded() {
+		SeriesPrefixCache cache = new SeriesPrefixCache(100);
+
+		for (int i = 0; i < 1000; ++i) {
+			cache.put(key("metric" + i), PREFIX, cache.generation());
+		}
+
+		assertTrue("Cache grew beyond its max size", cache.size() <= 100);
+	}
+
+	@Test
+	public void testInvalidate() {
+		SeriesPrefixCache cache = new SeriesPrefixCache(10);
+
+		long generation = cache.generation();
+		cache.put(key("metric"), PREFIX, generation);
+		cache.invalidate();
+
+		assertNull(cache.get(key("metric")));
+
+		// a prefix encoded before the invalidation must not be kept
+		cache.put(key("metric"), PREFIX, generation);
+		assertNull(cache.get(key("metric")));
+	}
+
+	@Test
+	public void testInvalidateApps() {
+		SeriesPrefixCache cache = new SeriesPrefixCache(10);
+		cache.put(appKey("app1"), PREFIX, cache.generation());
+		cache.put(appKey("app2"), PREFIX, cache.generation());
+		cache.put(key("metric"), PREFIX, cache.generation());
+
+		cache.invalidate(Collections.singleton("app1"));
+
+		assertNull(cache.get(appKey("app1")));
+		assertNotNull(cache.get(appKey("app2")));
+		assertNotNull(cache.get(key("metric")));
+	}
+
+	private SeriesPrefixCache.Key appKey(String applicationId) {
+		return new SeriesPrefixCache.Key().set(EventType.CONTAINER_METRIC, "rep", "ContainerMetric", null, null, null,
+				null, null, applicationId);
+	}
+
+	private SeriesPrefixCache.Key key(String name) {
+		return new SeriesPrefixCache.Key().set(EventType.VALUE_METRIC, "test", name, null, "test-job", null, null, null, null);
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import com.ecsteam.nozzle.influxdb.lineprotocol.LineProtocolEncoder;
+import org.cloudfoundry.doppler.ContainerMetric;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WriteRouterTests {
+
+	private static final String ROUTES = "["
+			+ "{\"eventType\":\"HTTP_START_STOP\",\"retentionPolicy\":\"one_week\"},"
+			+ "{\"origin\":\"gorouter\",\"name\":\"latency*\",\"database\":\"router\"},"
+			+ "{\"eventType\":\"COUNTER_EVENT\",\"retentionPolicy\":\"one_week\"}"
+			+ "]";
+
+	@Test
+	public void testRoutes() {
+		WriteRouter router = router(ROUTES);
+
+		List<WriteTarget> targets = router.getTargets();
+		assertEquals(3, targets.size());
+		assertEquals("default", targets.get(0).getName());
+		assertEquals("default.one_week", targets.get(1).getName());
+		assertNull(targets.get(1).getDatabase());
+		assertEquals("one_week", targets.get(1).getRetentionPolicy());
+		assertEquals("router", targets.get(2).getDatabase());
+
+		assertEquals(1, router.route(envelope(EventType.HTTP_START_STOP, "gorouter", null)));
+		assertEquals(2, router.route(envelope(EventType.VALUE_METRIC, "gorouter", "latency.uaa")));
+		assertEquals(0, router.route(envelope(EventType.VALUE_METRIC, "gorouter", "total_routes")));
+		assertEquals(0, router.route(envelope(EventType.VALUE_METRIC, "uaa", "latency.uaa")));
+		assertEquals(0, router.route(envelope(EventType.CONTAINER_METRIC, "rep", null)));
+	}
+
+	@Test
+	public void testNoRoutes() {
+		WriteRouter router = router("[]");
+
+		assertEquals(1, router.getTargets().size());
+		assertEquals(0, router.route(envelope(EventType.HTTP_START_STOP, "gorouter", null)));
+	}
+
+	@Test
+	public void testShardedRoutes() {
+		NozzleProperties properties = new NozzleProperties();
+		properties.setRoutes(ROUTES);
+		properties.setDbHosts("[\"http://influx-0:8086\", \"http://influx-1:8086\"]");
+
+		WriteTarget defaultTarget = new WriteTarget("default", null, null);
+		WriteRouter router = new WriteRouter(properties.getRoutes(), defaultTarget, properties.getDbHosts());
+
+		List<WriteTarget> targets = router.getTargets();
+		assertEquals(2, router.getEndpoints());
+		assertEquals(6, targets.size());
+		assertFalse(targets.contains(defaultTarget));
+		assertEquals("default.influx-0_8086", targets.get(0).getName());
+		assertEquals("http://influx-1:8086", targets.get(1).getHost());
+		assertEquals("router.influx-1_8086", targets.get(5).getName());
+		assertEquals("router", targets.get(5).getDatabase());
+
+		LineProtocolEncoder encoder = new LineProtocolEncoder();
+		Envelope envelope = envelope(EventType.HTTP_START_STOP, "gorouter", null);
+
+		boolean[] seen = new boolean[2];
+		for (int i = 0; i < 100; ++i) {
+			encoder.reset().measurement("gorouter", "HttpStartStop").tag("index", Integer.toString(i));
+			int length = encoder.length();
+			encoder.field("value", 1L);
+
+			// the series key decides the endpoint, the route the database
+			int target = router.route(envelope, encoder.buffer(), encoder.seriesLength());
+			assertEquals(length, encoder.seriesLength());
+			assertEquals(target, router.route(envelope, encoder.buffer(), length));
+			assertEquals(1, target / 2);
+			seen[target % 2] = true;
+		}
+
+		assertTrue(seen[0] && seen[1]);
+	}
+
+	@Test
+	public void testShardNames() {
+		assertEquals("influx-0_8086", WriteRouter.shardName("http://influx-0:8086"));
+		assertEquals("10.0.0.1_8086_influx", WriteRouter.shardName("https://10.0.0.1:8086/influx/"));
+		assertEquals("influx-0", WriteRouter.shardName("influx-0"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDuplicateShardNames() {
+		new WriteRouter(Collections.emptyList(), new WriteTarget("default", null, null),
+				Arrays.asList("http://influx-0:8086", "https://influx-0:8086"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidRoutes() {
+		router("[{\"eventType\":\"NOT_AN_EVENT\"}]");
+	}
+
+	@Test
+	public void testFullTargetDoesNotBlock() {
+		WriteRouter router = router(ROUTES);
+
+		BatchedEventListener batcher = new BatchedEventListener(router.getTargets(), 1, 4, null,
+				new FlushPolicy(1, 0, 0), null, 1);
+
+		// never started, nothing drains the buffers
+		router.getTargets().get(1).setHealthy(false);
+
+		int accepted = 0;
+		while (batcher.put(1, 0, new byte[1])) {
+			++accepted;
+		}
+
+		assertEquals(4, accepted);
+		assertTrue(batcher.put(0, 0, new byte[1]));
+		assertTrue(batcher.put(2, 0, new byte[1]));
+	}
+
+	private static WriteRouter router(String routes) {
+		NozzleProperties properties = new NozzleProperties();
+		properties.setRoutes(routes);
+
+		return new WriteRouter(properties.getRoutes(), new WriteTarget("default", null, null));
+	}
+
+	private static Envelope envelope(EventType eventType, String origin, String name) {
+		Envelope.Builder builder = Envelope.builder().eventType(eventType).origin(origin);
+
+		switch (eventType) {
+			case VALUE_METRIC:
+				builder.valueMetric(ValueMetric.builder().name(name).value(1.0).unit("ms").build());
+				break;
+			case CONTAINER_METRIC:
+				builder.containerMetric(ContainerMetric.builder().applicationId("app1234").instanceIndex(0).build());
+				break;
+			default:
+				break;
+		}
+
+		return builder.build();
+	}
+}
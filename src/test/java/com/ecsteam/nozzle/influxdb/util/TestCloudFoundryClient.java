@@ -4,6 +4,8 @@ import org.cloudfoundry.client.v2.Metadata;
 import org.cloudfoundry.client.v2.applications.ApplicationEntity;
 import org.cloudfoundry.client.v2.applications.ApplicationResource;
 import org.cloudfoundry.client.v2.applications.ApplicationsV2;
+import org.cloudfoundry.client.v2.applications.GetApplicationRequest;
+import org.cloudfoundry.client.v2.applications.GetApplicationResponse;
 import org.cloudfoundry.client.v2.applications.ListApplicationsRequest;
 import org.cloudfoundry.client.v2.applications.ListApplicationsResponse;
 import org.cloudfoundry.client.v2.organizations.ListOrganizationsRequest;
@@ -18,10 +20,29 @@ import org.cloudfoundry.client.v2.spaces.SpaceResource;
 import org.cloudfoundry.client.v2.spaces.Spaces;
 import reactor.core.publisher.Mono;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class TestCloudFoundryClient extends AbstractClients.TestCloudFoundryClient {
+
+	/**
+	 * Number of single app lookups, app5678 is the only app that can be looked up without being listed
+	 */
+	public final AtomicInteger applicationLookups = new AtomicInteger();
+
 	@Override
 	public ApplicationsV2 applicationsV2() {
 		return new AbstractClients.TestApplicationsV2() {
+			@Override
+			public Mono<GetApplicationResponse> get(GetApplicationRequest getApplicationRequest) {
+				applicationLookups.incrementAndGet();
+
+				if (!"app5678".equals(getApplicationRequest.getApplicationId())) {
+					return Mono.error(new IllegalArgumentException("Unknown app " + getApplicationRequest.getApplicationId()));
+				}
+
+				return Mono.just(GetApplicationResponse.builder().metadata(Metadata.builder().id("app5678").build()).entity(ApplicationEntity.builder().name("App 5").spaceId("spaceB").build()).build());
+			}
+
 			@Override
 			public Mono<ListApplicationsResponse> list(ListApplicationsRequest listApplicationsRequest) {
 				return Mono.just(ListApplicationsResponse.builder().resource(
@@ -52,7 +52,7 @@ public class TestDopplerClient extends AbstractClients.TestDopplerClient {
 		return Flux.fromIterable(envelopes()).delayElements(Duration.ofMillis(5));
 	}
 
-	private List<Envelope> envelopes() {
+	public List<Envelope> envelopes() {
 		List<Envelope> envelopes = new ArrayList<>(500);
 
 		for (int i = 0; i < 100; ++i) {
@@ -77,21 +77,21 @@ public class TestDopplerClient extends AbstractClients.TestDopplerClient {
 				.origin("test");
 	}
 
-	private Envelope generateValueMetric() {
+	public Envelope generateValueMetric() {
 		Envelope.Builder builder = startEnvelope();
 
 		ValueMetric valueMetric = ValueMetric.builder().name("valueMetric." + UUID.randomUUID().toString()).value(1024 * RNG.nextDouble()).unit(UNITS[RNG.nextInt(UNITS.length)]).build();
 		return builder.eventType(EventType.VALUE_METRIC).valueMetric(valueMetric).build();
 	}
 
-	private Envelope generateCounterEvent() {
+	public Envelope generateCounterEvent() {
 		Envelope.Builder builder = startEnvelope();
 
 		CounterEvent event = CounterEvent.builder().name("counterEvent." + UUID.randomUUID().toString()).total(RNG.nextLong()).delta(RNG.nextLong()).build();
 		return builder.eventType(EventType.COUNTER_EVENT).counterEvent(event).build();
 	}
 
-	private Envelope generateContainerMetric() {
+	public Envelope generateContainerMetric() {
 		Envelope.Builder builder = startEnvelope();
 
 		ContainerMetric metric = ContainerMetric.builder()
@@ -107,7 +107,7 @@ public class TestDopplerClient extends AbstractClients.TestDopplerClient {
 		return builder.eventType(EventType.CONTAINER_METRIC).containerMetric(metric).build();
 	}
 
-	private Envelope generateHttpStartStop() {
+	public Envelope generateHttpStartStop() {
 		Envelope.Builder builder = startEnvelope();
 
 		HttpStartStop metric = HttpStartStop.builder()
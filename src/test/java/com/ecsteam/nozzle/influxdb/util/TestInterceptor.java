@@ -41,41 +41,55 @@ public class TestInterceptor implements ClientHttpRequestInterceptor {
 	@NonNull
 	private final Consumer<String> testMethod;
 
-	private static final ClientHttpResponse SUCCESS = new ClientHttpResponse() {
-		@Override
-		public HttpStatus getStatusCode() throws IOException {
-			return HttpStatus.NO_CONTENT;
-		}
-
-		@Override
-		public int getRawStatusCode() throws IOException {
-			return 204;
-		}
-
-		@Override
-		public String getStatusText() throws IOException {
-			return "No Content";
-		}
-
-		@Override
-		public void close() {
-
-		}
-
-		@Override
-		public InputStream getBody() throws IOException {
-			return new ByteArrayInputStream(new byte[0]);
-		}
-
-		@Override
-		public HttpHeaders getHeaders() {
-			return null;
-		}
-	};
+	private final ClientHttpResponse response;
+
+	private static final ClientHttpResponse SUCCESS = response(HttpStatus.NO_CONTENT);
+
+	private static ClientHttpResponse response(HttpStatus status) {
+		return new ClientHttpResponse() {
+			@Override
+			public HttpStatus getStatusCode() throws IOException {
+				return status;
+			}
+
+			@Override
+			public int getRawStatusCode() throws IOException {
+				return status.value();
+			}
+
+			@Override
+			public String getStatusText() throws IOException {
+				return status.getReasonPhrase();
+			}
+
+			@Override
+			public void close() {
+
+			}
+
+			@Override
+			public InputStream getBody() throws IOException {
+				return new ByteArrayInputStream(new byte[0]);
+			}
+
+			@Override
+			public HttpHeaders getHeaders() {
+				return new HttpHeaders();
+			}
+		};
+	}
 
 	public TestInterceptor(int numRetries, Consumer<String> testMethod) {
+		this(numRetries, HttpStatus.NO_CONTENT, testMethod);
+	}
+
+	/**
+	 * @param status what InfluxDB responds once the connection errors are over
+	 */
+	public TestInterceptor(int numRetries, HttpStatus status, Consumer<String> testMethod) {
 		this.countDown = new AtomicInteger(numRetries);
 		this.testMethod = testMethod;
+		this.response = status == HttpStatus.NO_CONTENT ? SUCCESS : response(status);
 	}
 
 	@Override
@@ -89,6 +103,6 @@ public class TestInterceptor implements ClientHttpRequestInterceptor {
 
 		testMethod.accept(bodyString);
 
-		return SUCCESS;
+		return response;
 	}
 }